@@ -9,14 +9,29 @@ package cp2023.base;
 
 public final class ComponentId implements Comparable<ComponentId> {
 
-    private int id;
+    private static final InternedIds<ComponentId> interned = new InternedIds<>(ComponentId::new);
+
+    private final int id;
     
     public ComponentId(int id) {
         this.id = id;
     }
 
+    // Returns the canonical id of the number, the same object on every call,
+    // so no new id is allocated and ids made by of() can be compared with ==.
+    public static ComponentId of(int id) {
+        return interned.get(id);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (! (obj instanceof ComponentId)) {
             return false;
         }
@@ -9,14 +9,29 @@ package cp2023.base;
 
 public final class DeviceId implements Comparable<DeviceId> {
 
-    private int id;
+    private static final InternedIds<DeviceId> interned = new InternedIds<>(DeviceId::new);
+
+    private final int id;
     
     public DeviceId(int id) {
         this.id = id;
     }
 
+    // Returns the canonical id of the number, the same object on every call,
+    // so no new id is allocated and ids made by of() can be compared with ==.
+    public static DeviceId of(int id) {
+        return interned.get(id);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (! (obj instanceof DeviceId)) {
             return false;
         }
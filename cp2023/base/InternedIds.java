@@ -0,0 +1,60 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.base;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+// Canonical instances of ids, as returned by ComponentId.of() and DeviceId.of(),
+// so ids of the same number made by them are the same object. Instances are
+// created on first use and kept forever, like interned strings. They are kept
+// in a three-level array covering every int, whose chunks are allocated once
+// the first id of a chunk is used, so finding one takes three array reads, no
+// locks and no allocation. Negative ids are kept in a separate array, by their
+// complement. Every id used costs one reference besides its instance, as long
+// as ids are mostly dense, which is how they are usually assigned.
+final class InternedIds<T> {
+    private static final int LEAF_BITS = 10;
+    private static final int MIDDLE_BITS = 10;
+    private static final int ROOT_BITS = Integer.SIZE - 1 - MIDDLE_BITS - LEAF_BITS;
+    private static final int LEAF_SIZE = 1 << LEAF_BITS;
+    private static final int MIDDLE_SIZE = 1 << MIDDLE_BITS;
+
+    private final IntFunction<T> constructor;
+    private final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<T>>> nonNegativeIds =
+            new AtomicReferenceArray<>(1 << ROOT_BITS);
+    private final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<T>>> negativeIds =
+            new AtomicReferenceArray<>(1 << ROOT_BITS);
+
+    InternedIds(IntFunction<T> constructor) {
+        this.constructor = constructor;
+    }
+
+    // Chunks and instances racing for the same place are resolved by
+    // compareAndSet(), so only one of them is ever used.
+    T get(int id) {
+        int index = id < 0 ? ~id : id;
+        AtomicReferenceArray<AtomicReferenceArray<T>> middle =
+                chunk(id < 0 ? negativeIds : nonNegativeIds, index >>> (MIDDLE_BITS + LEAF_BITS), MIDDLE_SIZE);
+        AtomicReferenceArray<T> leaf = chunk(middle, (index >>> LEAF_BITS) & (MIDDLE_SIZE - 1), LEAF_SIZE);
+        int position = index & (LEAF_SIZE - 1);
+        T instance = leaf.get(position);
+        if (instance == null) {
+            leaf.compareAndSet(position, null, constructor.apply(id));
+            instance = leaf.get(position);
+        }
+        return instance;
+    }
+
+    private static <C> AtomicReferenceArray<C> chunk(
+            AtomicReferenceArray<AtomicReferenceArray<C>> parent, int position, int size) {
+        AtomicReferenceArray<C> chunk = parent.get(position);
+        if (chunk == null) {
+            parent.compareAndSet(position, null, new AtomicReferenceArray<>(size));
+            chunk = parent.get(position);
+        }
+        return chunk;
+    }
+}
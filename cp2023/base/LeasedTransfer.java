@@ -0,0 +1,13 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.base;
+
+// Transfer that takes a slot of a lease on its destination device. If the
+// lease has no slots left, belongs to another device or another system,
+// the transfer is executed as an ordinary one.
+public interface LeasedTransfer extends ComponentTransfer {
+
+    public SlotLease getLease();
+}
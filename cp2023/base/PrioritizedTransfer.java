@@ -0,0 +1,26 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.base;
+
+// Transfer that should be admitted before other transfers waiting for
+// a place on the same device. Ordinary transfers have priority 0 and no deadline.
+//
+// Waiting transfers are ordered by their virtual deadlines: the time a transfer
+// started waiting, moved back by a fixed step for every level of priority,
+// or its deadline if that is earlier. A transfer that has waited long enough
+// is therefore admitted before newer transfers of any priority.
+public interface PrioritizedTransfer extends ComponentTransfer {
+
+    // Higher values are admitted first; may be negative.
+    public default int getPriority() {
+        return 0;
+    }
+
+    // Time by which the transfer should be admitted, as a value of
+    // System.nanoTime(), or Long.MAX_VALUE if there is none.
+    public default long getDeadline() {
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.base;
+
+// Slots on a device reserved for a bounded time by StorageSystem.leaseSlots().
+// Each leased slot can be taken by one LeasedTransfer with this device as its
+// destination, without waiting for other transfers. Slots not taken before
+// the lease expires or is released are given back to the device.
+public interface SlotLease {
+
+    public DeviceId getDeviceId();
+
+    // Number of slots that can still be taken; 0 once the lease has ended.
+    public int getRemainingSlots();
+
+    // Gives the remaining slots back to the device at once.
+    public void release();
+}
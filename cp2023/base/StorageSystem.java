@@ -7,10 +7,28 @@
  */
 package cp2023.base;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import cp2023.exceptions.TransferException;
 
 public interface StorageSystem {
 
     void execute(ComponentTransfer transfer) throws TransferException;
+
+    // Returns false if the transfer cannot be admitted without waiting.
+    boolean tryExecute(ComponentTransfer transfer) throws TransferException;
+
+    // Returns false if the transfer has not been admitted in time.
+    boolean execute(ComponentTransfer transfer, long timeout, TimeUnit unit) throws TransferException;
+
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer);
+
+    List<TransferException> executeAll(Collection<? extends ComponentTransfer> transfers);
+
+    // Returns null if the device does not have that many free slots.
+    SlotLease leaseSlots(DeviceId deviceId, int slots, long duration, TimeUnit unit) throws TransferException;
     
 }
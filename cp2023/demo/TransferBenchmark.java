@@ -0,0 +1,1346 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.demo;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.LeasedTransfer;
+import cp2023.base.PrioritizedTransfer;
+import cp2023.base.SlotLease;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferInterrupted;
+import cp2023.solution.DeviceLimits;
+import cp2023.solution.MovePlan;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemInstance;
+
+
+// Benchmarks of the storage system, run with java as a program. There is no
+// build, so there is no JMH suite; scenarios measure what its profilers would
+// themselves. The allocation scenario reads the bytes allocated by the threads
+// executing transfers from the JVM, as -prof gc reports them per operation,
+// and the metrics scenario compares the throughput of the same workloads with
+// metrics disabled and enabled in one JVM and prints the overhead.
+public final class TransferBenchmark {
+
+    private final static int[] PAIRS = {1, 2, 4, 8, 16};
+    private final static int TRANSFERS_PER_PAIR = 200;
+    private final static long COPY_DURATION = 1;
+
+    private final static int[] BACKLOGS = {0, 1000, 4000};
+    private final static int CHAIN_LENGTH = 200;
+
+    private final static int[] CHAINS = {100, 1000};
+
+    // Transfers leaving a full device race with transfers arriving at it,
+    // which claim the places being released:
+    private final static int[] DEPARTURES = {100, 10000};
+    private final static int DEPARTURE_ROUNDS = 10;
+    private final static int DEPARTURE_THREADS = 8;
+
+    // Transfers reused over and over, first to devices with free places and
+    // then swapped between full devices; the objects of the transfers
+    // themselves are allocated in advance:
+    private final static boolean[] ALLOCATION_BLOCKING = {false, true};
+    private final static int ALLOCATION_WARMUP = 100000;
+    private final static int ALLOCATION_TRANSFERS = 1000000;
+    // Ids interned and then looked up again, far beyond the first chunks
+    // of the cache, both positive and negative:
+    private final static int LARGE_ID_BASE = 1 << 30;
+    private final static int LARGE_IDS = 1 << 21;
+
+    private final static int[] ROTATIONS = {100, 500, 1000};
+    private final static int[] BATCH_ROTATIONS = {100, 1000, 10000};
+    private final static int[] ASYNC_BACKLOGS = {1000, 10000, 100000};
+    // The largest number of waiting transfers needs a heap of about 1 GB:
+    private final static int[] WAITING = {100000, 1000000};
+
+    // Building the largest system needs a heap of about 2 GB:
+    private final static int[] VALIDATION_SIZES = {1000, 100000, 1000000, 10000000};
+    private final static int VALIDATIONS = 1000000;
+    private final static int[] SNAPSHOT_SIZES = {1000000, 10000000};
+
+    // Background transfers keep the queue of a device long, while an urgent
+    // transfer arrives from time to time, first without and then with priority:
+    private final static int[] URGENT_PRIORITIES = {0, 100};
+    private final static int BACKGROUND_THREADS = 32;
+    private final static int PRIORITY_SLOTS = 4;
+    private final static long PRIORITY_DURATION = 3000;
+
+    // Components are migrated through a device kept busy by background
+    // transfers, first without and then with slots leased in advance:
+    private final static boolean[] LEASES = {false, true};
+    private final static int MIGRATIONS = 16;
+
+    // Components are moved around a ring of devices by a large executor,
+    // first without and then with a limit of operations running on a device:
+    private final static int[] MAX_CONCURRENT_OPERATIONS = {DeviceLimits.UNLIMITED, 2};
+    private final static int LIMITED_DEVICES = 4;
+    private final static int LIMITED_COMPONENTS_PER_DEVICE = 32;
+    private final static int LIMITED_ROUNDS = 16;
+
+    // A fleet of devices is rearranged to a random placement, first with every
+    // transfer executed at once, then with the waves of a plan, without and
+    // with buffers:
+    private final static String[] PLANNER_MODES = {"individual", "waves", "buffers"};
+    private final static int PLANNER_DEVICES = 10000;
+    private final static int PLANNER_SLOTS = 4;
+    private final static double PLANNER_FILL = 0.9;
+    private final static int PLANNER_THREADS = 64;
+
+    // Readers look components up while writers move other components around,
+    // first without and then with writers; full views are taken meanwhile:
+    private final static int[] QUERY_WRITERS = {0, 4};
+    private final static int QUERY_READERS = 4;
+    private final static int QUERY_DEVICES = 1000;
+    private final static int QUERY_SLOTS = 100;
+    private final static long QUERY_DURATION = 2000;
+
+    private final static String[][] WORKLOADS = {
+        {"devices=64", "slots=4", "fill=0.5", "threads=1"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=4"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16"},
+        {"devices=64", "slots=4", "fill=0.9", "threads=48"},
+        {"devices=1024", "slots=4", "fill=0.75", "threads=16"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "churn=20"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "copy=100"},
+        {"devices=64", "slots=1", "rotation=8"},
+        {"devices=256", "slots=2", "rotation=64"},
+    };
+
+    // Many threads moving components between a few devices. In the first
+    // workload destinations always have free places, so transfers take them
+    // without locking the destination; in the second every destination is
+    // full and every transfer goes through the queues.
+    private final static String[][] CONTENTION = {
+        {"devices=4", "slots=64", "fill=0.25", "threads=16"},
+        {"devices=4", "slots=16", "rotation=4"},
+    };
+
+    // The same workloads with metrics disabled and enabled, in pairs, to measure
+    // their overhead:
+    private final static String[][] METRICS = {
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "metrics=0"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "metrics=1"},
+        {"devices=64", "slots=1", "rotation=8", "metrics=0"},
+        {"devices=64", "slots=1", "rotation=8", "metrics=1"},
+    };
+    // The first rounds are dominated by compilation, which happens while metrics
+    // are still disabled, so only the last rounds show the steady overhead:
+    private final static int METRICS_ROUNDS = 4;
+    private final static int METRICS_MEASURED_ROUNDS = 2;
+
+    // The same workloads without and with the journal. Every transfer waits
+    // for its record to be forced to disk, and records of concurrent transfers
+    // are forced together, so the throughput should grow with the number of threads.
+    private final static String[][] JOURNAL = {
+        {"devices=64", "slots=4", "fill=0.5", "threads=1", "journal=0"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=1", "journal=1"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "journal=0"},
+        {"devices=64", "slots=4", "fill=0.5", "threads=16", "journal=1"},
+        {"devices=256", "slots=4", "fill=0.5", "threads=128", "journal=1"},
+        {"devices=64", "slots=1", "rotation=8", "journal=1"},
+    };
+
+    // Scenarios to run can be given as arguments, by default all of them are run.
+    // Arguments of the form key=value are parameters of a single workload
+    // (see TransferWorkload); without them, a set of predefined workloads is run.
+    public static void main(String[] args) {
+        List<String> scenarios = new ArrayList<>();
+        List<String> parameters = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.contains("=")) {
+                parameters.add(arg);
+            } else {
+                scenarios.add(arg);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("pairs")) {
+            for (int pairs : PAIRS) {
+                runPairs(pairs);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("backlog")) {
+            for (int backlog : BACKLOGS) {
+                runBacklog(backlog);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("chain")) {
+            for (int length : CHAINS) {
+                runChain(length);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("departures")) {
+            for (int inFlight : DEPARTURES) {
+                runDepartures(inFlight);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("allocation")) {
+            for (boolean blocking : ALLOCATION_BLOCKING) {
+                runAllocation(blocking);
+            }
+            runIdAllocation();
+        }
+        if (scenarios.isEmpty() || scenarios.contains("rotation")) {
+            for (int devices : ROTATIONS) {
+                runRotation(devices);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("batch")) {
+            for (int devices : BATCH_ROTATIONS) {
+                runBatchRotation(devices);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("async")) {
+            for (int backlog : ASYNC_BACKLOGS) {
+                runAsyncBacklog(backlog);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("waiting")) {
+            for (int waiting : WAITING) {
+                runWaiting(waiting);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("validation")) {
+            for (int components : VALIDATION_SIZES) {
+                runValidation(components);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("priority")) {
+            for (int priority : URGENT_PRIORITIES) {
+                runPriority(priority);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("lease")) {
+            for (boolean leased : LEASES) {
+                runLease(leased);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("limits")) {
+            for (int maxConcurrentOperations : MAX_CONCURRENT_OPERATIONS) {
+                runLimits(maxConcurrentOperations);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("planner")) {
+            for (String mode : PLANNER_MODES) {
+                runPlanner(mode);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("queries")) {
+            for (int writers : QUERY_WRITERS) {
+                runQueries(writers);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("snapshot")) {
+            for (int components : SNAPSHOT_SIZES) {
+                runSnapshot(components);
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("contention")) {
+            for (String[] workload : CONTENTION) {
+                new TransferWorkload(workload).run();
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("metrics")) {
+            runMetrics();
+        }
+        if (scenarios.isEmpty() || scenarios.contains("journal")) {
+            for (String[] workload : JOURNAL) {
+                new TransferWorkload(workload).run();
+            }
+        }
+        if (scenarios.isEmpty() || scenarios.contains("workload")) {
+            if (!parameters.isEmpty()) {
+                new TransferWorkload(parameters.toArray(new String[0])).run();
+            } else {
+                for (String[] workload : WORKLOADS) {
+                    new TransferWorkload(workload).run();
+                }
+            }
+        }
+    }
+
+    // Runs all workloads of METRICS in every round, and prints the throughput of
+    // every pair with metrics disabled and enabled, averaged over the last rounds.
+    private final static void runMetrics() {
+        double[] throughputs = new double[METRICS.length];
+        for (int round = 0; round < METRICS_ROUNDS; round++) {
+            for (int i = 0; i < METRICS.length; i++) {
+                double throughput = new TransferWorkload(METRICS[i]).run();
+                if (round >= METRICS_ROUNDS - METRICS_MEASURED_ROUNDS) {
+                    throughputs[i] += throughput / METRICS_MEASURED_ROUNDS;
+                }
+            }
+        }
+        for (int i = 0; i + 1 < METRICS.length; i += 2) {
+            System.out.printf("metrics %s: off=%.1f ops/s on=%.1f ops/s overhead=%.1f%%%n",
+                    String.join(" ", Arrays.copyOf(METRICS[i], METRICS[i].length - 1)),
+                    throughputs[i], throughputs[i + 1], 100 * (1 - throughputs[i + 1] / throughputs[i]));
+        }
+    }
+
+    // Every pair of devices is served by its own thread, which moves a single
+    // component back and forth. Pairs are independent of each other, so the
+    // throughput should grow with the number of pairs.
+    private final static void runPairs(int pairs) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            deviceCapacities.put(new DeviceId(2 * i + 1), 1);
+            deviceCapacities.put(new DeviceId(2 * i + 2), 1);
+            initialComponentMapping.put(new ComponentId(i + 1), new DeviceId(2 * i + 1));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        ArrayList<Thread> movers = new ArrayList<>();
+        for (int i = 0; i < pairs; i++) {
+            final int pair = i;
+            movers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int from = 2 * pair + 1;
+                    int to = 2 * pair + 2;
+                    for (int j = 0; j < TRANSFERS_PER_PAIR; j++) {
+                        executeTransfer(system, pair + 1, from, to, COPY_DURATION);
+                        int swap = from;
+                        from = to;
+                        to = swap;
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        runTransferers(movers);
+        long elapsed = System.nanoTime() - start;
+
+        long transfers = (long) pairs * TRANSFERS_PER_PAIR;
+        System.out.printf("pairs=%2d transfers=%6d time=%8.1f ms throughput=%10.1f transfers/s%n",
+                pairs, transfers, elapsed / 1e6, transfers * 1e9 / elapsed);
+    }
+
+    // A chain of transfers waiting for device 1 is woken up one by one, while
+    // a backlog of transfers is waiting for device 2. The cost of a single
+    // wakeup should not depend on the size of the backlog.
+    private final static void runBacklog(int backlog) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), 1);
+        deviceCapacities.put(new DeviceId(2), 1);
+        initialComponentMapping.put(new ComponentId(1), new DeviceId(1));
+        initialComponentMapping.put(new ComponentId(2), new DeviceId(2));
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        ArrayList<Thread> waiting = new ArrayList<>();
+        for (int i = 0; i < backlog; i++) {
+            waiting.add(addThenDelete(system, 1000000 + i, 2));
+        }
+        ArrayList<Thread> chain = new ArrayList<>();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            chain.add(addThenDelete(system, 100 + i, 1));
+        }
+        startTransferers(waiting);
+        startTransferers(chain);
+        // Giving all transfers time to reach their queues:
+        sleep(200 + backlog / 10);
+
+        long start = System.nanoTime();
+        executeTransfer(system, 1, 1, 0, 0);
+        joinTransferers(chain);
+        long elapsed = System.nanoTime() - start;
+
+        executeTransfer(system, 2, 2, 0, 0);
+        joinTransferers(waiting);
+
+        System.out.printf("backlog=%5d chain=%4d time=%8.1f ms wakeup=%8.1f us%n",
+                backlog, CHAIN_LENGTH, elapsed / 1e6, elapsed / 1e3 / CHAIN_LENGTH);
+    }
+
+    // Every device but the first is full, and every component is moved to the
+    // previous device, each by its own thread. All transfers wait until the
+    // first one is started, and then every transfer is admitted by the one
+    // before it and takes its place once that one is prepared. The chain is
+    // measured from the start of the first transfer to the end of the last one.
+    private final static void runChain(int length) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), 1);
+        for (int i = 1; i <= length; i++) {
+            deviceCapacities.put(new DeviceId(i + 1), 1);
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(i + 1));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        ArrayList<Thread> chain = new ArrayList<>();
+        long[] ends = new long[length + 1];
+        for (int i = length; i > 1; i--) {
+            final int component = i;
+            chain.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    executeTransfer(system, component, component + 1, component, 0);
+                    ends[component] = System.nanoTime();
+                }
+            }));
+        }
+        startTransferers(chain);
+        // Giving all transfers time to reach their queues:
+        sleep(200 + length / 10);
+
+        long start = System.nanoTime();
+        executeTransfer(system, 1, 2, 1, 0);
+        ends[1] = System.nanoTime();
+        joinTransferers(chain);
+        long elapsed = Arrays.stream(ends).max().getAsLong() - start;
+
+        System.out.printf("chain length=%5d time=%8.1f ms hop=%8.1f us%n",
+                length, elapsed / 1e6, elapsed / 1e3 / length);
+    }
+
+    // Device 1 is full, and every other device has a component and a free
+    // place. In every round each component of device 1 leaves for its own
+    // device, while the component of that device moves to device 1, the two
+    // transfers submitted by different threads at the same time. An arrival
+    // either claims the place of a departing transfer at once or waits until
+    // it is handed over, in time independent of the number of departures.
+    // Components on device 1 are counted, and the count never exceeds its capacity.
+    private final static void runDepartures(int inFlight) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), inFlight);
+        for (int i = 1; i <= inFlight; i++) {
+            deviceCapacities.put(new DeviceId(i + 1), 2);
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(1));
+            initialComponentMapping.put(new ComponentId(inFlight + i), new DeviceId(i + 1));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(DEPARTURE_THREADS);
+        StorageSystemInstance system = (StorageSystemInstance) StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping, executor);
+
+        AtomicInteger onFirstDevice = new AtomicInteger(inFlight);
+        AtomicInteger peak = new AtomicInteger(inFlight);
+        long start = System.nanoTime();
+        for (int round = 0; round < DEPARTURE_ROUNDS; round++) {
+            // Components of device 1 in this round are 1..inFlight or the others:
+            int leaving = round % 2 == 0 ? 0 : inFlight;
+            int arriving = inFlight - leaving;
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            Thread departures = new Thread(() -> {
+                for (int i = 1; i <= inFlight; i++) {
+                    futures.add(system.executeAsync(new OccupyingTransfer(new ComponentId(leaving + i),
+                            new DeviceId(1), new DeviceId(i + 1), onFirstDevice, null, peak)));
+                }
+            });
+            Thread arrivals = new Thread(() -> {
+                for (int i = 1; i <= inFlight; i++) {
+                    futures.add(system.executeAsync(new OccupyingTransfer(new ComponentId(arriving + i),
+                            new DeviceId(i + 1), new DeviceId(1), null, onFirstDevice, peak)));
+                }
+            });
+            runTransferers(List.of(departures, arrivals));
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        if (peak.get() > inFlight) {
+            throw new RuntimeException("Capacity of device 1 exceeded: " + peak.get());
+        }
+        long transfers = 2L * inFlight * DEPARTURE_ROUNDS;
+        System.out.printf("departures in flight=%5d transfers=%7d time=%8.1f ms transfer=%6.1f us "
+                        + "claimed from leaving=%7d queued=%7d%n",
+                inFlight, transfers, elapsed / 1e6, elapsed / 1e3 / transfers,
+                system.getMetrics().getAdmittedByLeavingTransfer(), system.getMetrics().getQueued());
+    }
+
+    // Bytes allocated by the threads executing transfers, per transfer, once
+    // the system has warmed up. Without blocking a single thread moves its
+    // component between two devices with free places. With blocking two
+    // threads swap their components between two full devices, so transfers
+    // wait for each other, take the places of leaving transfers and close cycles.
+    private final static void runAllocation(boolean blocking) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), blocking ? 1 : 2);
+        deviceCapacities.put(new DeviceId(2), blocking ? 1 : 2);
+        initialComponentMapping.put(new ComponentId(1), new DeviceId(1));
+        if (blocking) {
+            initialComponentMapping.put(new ComponentId(2), new DeviceId(2));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] allocated = new long[blocking ? 2 : 1];
+        ArrayList<Thread> movers = new ArrayList<>();
+        for (int i = 0; i < allocated.length; i++) {
+            final int mover = i;
+            movers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ComponentTransfer[] transfers = {
+                        new CopyingTransfer(ComponentId.of(mover + 1),
+                                DeviceId.of(mover + 1), DeviceId.of(2 - mover), 0),
+                        new CopyingTransfer(ComponentId.of(mover + 1),
+                                DeviceId.of(2 - mover), DeviceId.of(mover + 1), 0),
+                    };
+                    long start = 0;
+                    for (int j = 0; j < ALLOCATION_WARMUP + ALLOCATION_TRANSFERS; j++) {
+                        if (j == ALLOCATION_WARMUP) {
+                            start = threads.getCurrentThreadAllocatedBytes();
+                        }
+                        try {
+                            system.execute(transfers[j % 2]);
+                        } catch (TransferException e) {
+                            throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+                        }
+                    }
+                    allocated[mover] = threads.getCurrentThreadAllocatedBytes() - start;
+                }
+            }));
+        }
+        runTransferers(movers);
+
+        long transfers = (long) allocated.length * ALLOCATION_TRANSFERS;
+        System.out.printf("allocation blocking=%-5b transfers=%8d allocated=%8.2f B/transfer%n",
+                blocking, transfers, Arrays.stream(allocated).sum() / (double) transfers);
+    }
+
+    // Bytes allocated by ComponentId.of() for large ids, per id, when the ids
+    // are interned, and per lookup once they have been.
+    private final static void runIdAllocation() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] allocated = new long[2];
+        long checksum = 0;
+        for (int round = 0; round < allocated.length; round++) {
+            long start = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < LARGE_IDS; i++) {
+                checksum += ComponentId.of(LARGE_ID_BASE + i).getId();
+                checksum -= ComponentId.of(-LARGE_ID_BASE - i).getId();
+            }
+            allocated[round] = threads.getCurrentThreadAllocatedBytes() - start;
+        }
+        if (checksum != 4L * (LARGE_IDS * (long) LARGE_ID_BASE + (long) LARGE_IDS * (LARGE_IDS - 1) / 2)) {
+            throw new RuntimeException("Wrong ids: " + checksum);
+        }
+        long lookups = 2L * LARGE_IDS;
+        System.out.printf("allocation large ids=%8d interned=%8.2f B/id looked up=%8.2f B/lookup%n",
+                lookups, allocated[0] / (double) lookups, allocated[1] / (double) lookups);
+    }
+
+    // Every device is full and every component is moved to the next device,
+    // so the transfers can only be executed as one long cycle. Transfers are
+    // started in a random order, so the cycle is built from many fragments.
+    private final static void runRotation(int devices) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        for (int i = 1; i <= devices; i++) {
+            deviceCapacities.put(new DeviceId(i), 1);
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(i));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        ArrayList<Thread> movers = new ArrayList<>();
+        for (int i = 1; i <= devices; i++) {
+            final int device = i;
+            movers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    executeTransfer(system, device, device, device % devices + 1, 0);
+                }
+            }));
+        }
+        Collections.shuffle(movers, new Random(devices));
+
+        long start = System.nanoTime();
+        runTransferers(movers);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("rotation devices=%5d time=%8.1f ms%n", devices, elapsed / 1e6);
+    }
+
+    // The same rotation submitted as a single batch by one thread. The whole
+    // cycle is found while places are reserved, and no thread waits for it.
+    private final static void runBatchRotation(int devices) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        for (int i = 1; i <= devices; i++) {
+            deviceCapacities.put(new DeviceId(i), 1);
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(i));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        ArrayList<ComponentTransfer> batch = new ArrayList<>();
+        for (int i = 1; i <= devices; i++) {
+            batch.add(new CopyingTransfer(
+                    new ComponentId(i), new DeviceId(i), new DeviceId(i % devices + 1), 0));
+        }
+        Collections.shuffle(batch, new Random(devices));
+
+        long start = System.nanoTime();
+        List<TransferException> results = system.executeAll(batch);
+        long elapsed = System.nanoTime() - start;
+
+        for (TransferException result : results) {
+            if (result != null) {
+                throw new RuntimeException("Uexpected transfer exception: " + result.toString(), result);
+            }
+        }
+        System.out.printf("batch rotation devices=%5d time=%8.1f ms%n", devices, elapsed / 1e6);
+    }
+
+    // A backlog of asynchronous transfers adding components to a full device,
+    // each followed by a transfer deleting its component again. Transfers
+    // waiting for the device are continuations, so the backlog does not
+    // need any threads.
+    private final static void runAsyncBacklog(int backlog) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), 1);
+        initialComponentMapping.put(new ComponentId(1), new DeviceId(1));
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < backlog; i++) {
+            ComponentId component = new ComponentId(i + 2);
+            futures.add(system.executeAsync(new CopyingTransfer(component, null, new DeviceId(1), 0))
+                    .thenCompose(added -> system.executeAsync(
+                            new CopyingTransfer(component, new DeviceId(1), null, 0))));
+        }
+        int threads = Thread.activeCount();
+        futures.add(system.executeAsync(new CopyingTransfer(new ComponentId(1), new DeviceId(1), null, 0)));
+        for (CompletableFuture<Void> future : futures) {
+            future.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("async backlog=%6d threads=%3d time=%8.1f ms transfer=%8.1f us%n",
+                backlog, threads, elapsed / 1e6, elapsed / 1e3 / (2 * backlog + 1));
+    }
+
+    // Transfers waiting for a place on a full device, which are then all
+    // cancelled. Asynchronous transfers wait as continuations; if the runtime
+    // has virtual threads, blocking transfers are also run in a virtual thread
+    // each and withdrawn by interrupting the threads.
+    private final static void runWaiting(int waiting) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), 1);
+        initialComponentMapping.put(new ComponentId(1), new DeviceId(1));
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<Void>> futures = new ArrayList<>(waiting);
+        for (int i = 0; i < waiting; i++) {
+            futures.add(system.executeAsync(
+                    new CopyingTransfer(new ComponentId(i + 2), null, new DeviceId(1), 0)));
+        }
+        long submitted = System.nanoTime() - start;
+        long heapWaiting = usedHeap() - heapBefore;
+        start = System.nanoTime();
+        for (CompletableFuture<Void> future : futures) {
+            if (!future.cancel(false)) {
+                throw new RuntimeException("Waiting transfer has not been cancelled");
+            }
+        }
+        long cancelled = System.nanoTime() - start;
+        System.out.printf("async waiting=%8d submit=%8.1f ms cancel=%8.1f ms heap=%6.1f B/transfer%n",
+                waiting, submitted / 1e6, cancelled / 1e6, (double) heapWaiting / waiting);
+        futures = null;
+
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        if (virtualThreads == null) {
+            System.out.printf("virtual waiting=%8d skipped - no virtual threads in this runtime%n", waiting);
+            return;
+        }
+        AtomicInteger interrupted = new AtomicInteger();
+        ArrayList<Future<?>> threads = new ArrayList<>(waiting);
+        start = System.nanoTime();
+        for (int i = 0; i < waiting; i++) {
+            ComponentId component = new ComponentId(i + 2);
+            threads.add(virtualThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        system.execute(new CopyingTransfer(component, null, new DeviceId(1), 0));
+                    } catch (TransferInterrupted e) {
+                        interrupted.incrementAndGet();
+                    } catch (TransferException e) {
+                        throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+                    }
+                }
+            }));
+        }
+        submitted = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (Future<?> thread : threads) {
+            thread.cancel(true);
+        }
+        virtualThreads.shutdown();
+        try {
+            virtualThreads.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+        cancelled = System.nanoTime() - start;
+        System.out.printf("virtual waiting=%8d submit=%8.1f ms interrupt=%8.1f ms interrupted=%d%n",
+                waiting, submitted / 1e6, cancelled / 1e6, interrupted.get());
+    }
+
+    // Virtual threads are not available in every supported runtime:
+    private final static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private final static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Only invalid transfers are executed, so the time of a single call
+    // is the time of validation. It should not depend on the number of components.
+    private final static void runValidation(int components) {
+        int devices = 1000;
+        long heapBefore = usedHeap();
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>(2 * components);
+        DeviceId[] deviceIds = new DeviceId[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = new DeviceId(i + 1);
+            deviceCapacities.put(deviceIds[i], components / devices);
+        }
+        for (int i = 0; i < components; i++) {
+            initialComponentMapping.put(new ComponentId(i + 1), deviceIds[i % devices]);
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+        // The system keeps its own copy of the placement:
+        initialComponentMapping = null;
+        long heapSystem = usedHeap() - heapBefore;
+
+        Random random = new Random(components);
+        long elapsed = 0;
+        // The first round warms the system up:
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < VALIDATIONS; i++) {
+                int component = random.nextInt(components);
+                int device = component % devices;
+                try {
+                    if (i % 2 == 0) {
+                        // Component is not on its source device:
+                        system.execute(new CopyingTransfer(new ComponentId(component + 1),
+                                deviceIds[(device + 1) % devices], deviceIds[device], 0));
+                    } else {
+                        // Component already exists:
+                        system.execute(new CopyingTransfer(new ComponentId(component + 1),
+                                null, deviceIds[device], 0));
+                    }
+                    throw new RuntimeException("Invalid transfer has been executed");
+                } catch (TransferException e) {
+                    // Expected.
+                }
+            }
+            elapsed = System.nanoTime() - start;
+        }
+
+        System.out.printf("validation components=%9d time=%8.1f ms validation=%8.1f ns heap=%6.1f B/component%n",
+                components, elapsed / 1e6, (double) elapsed / VALIDATIONS, (double) heapSystem / components);
+    }
+
+    // Compares creating a system from maps with writing it to a snapshot
+    // and creating it again from the snapshot.
+    private final static void runSnapshot(int components) {
+        int devices = 1000;
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>(2 * components);
+        DeviceId[] deviceIds = new DeviceId[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = new DeviceId(i + 1);
+            deviceCapacities.put(deviceIds[i], components / devices);
+        }
+        for (int i = 0; i < components; i++) {
+            initialComponentMapping.put(new ComponentId(i + 1), deviceIds[i % devices]);
+        }
+
+        long start = System.nanoTime();
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+        long fromMaps = System.nanoTime() - start;
+        initialComponentMapping = null;
+
+        Path snapshot = null;
+        try {
+            snapshot = Files.createTempFile("placement", ".snapshot");
+            start = System.nanoTime();
+            ((StorageSystemInstance) system).writeSnapshot(snapshot);
+            long writing = System.nanoTime() - start;
+            system = null;
+
+            start = System.nanoTime();
+            system = StorageSystemFactory.newSystemFromSnapshot(snapshot);
+            long fromSnapshot = System.nanoTime() - start;
+
+            System.out.printf("snapshot components=%9d from maps=%8.1f ms write=%8.1f ms "
+                            + "from snapshot=%8.1f ms size=%6.1f MB%n",
+                    components, fromMaps / 1e6, writing / 1e6, fromSnapshot / 1e6,
+                    Files.size(snapshot) / 1e6);
+        } catch (IOException e) {
+            throw new RuntimeException("Snapshot could not be written or read", e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.toFile().delete();
+            }
+        }
+    }
+
+    // Background threads add their components to a single device, keep them
+    // there for COPY_DURATION and delete them, so most of them wait in the queue
+    // of the device. The urgent thread does the same every few milliseconds.
+    // Latencies of adding are compared.
+    private final static void runPriority(int urgentPriority) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), PRIORITY_SLOTS);
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, new HashMap<>());
+        AtomicBoolean stopped = new AtomicBoolean();
+        List<List<Long>> latencies = new ArrayList<>();
+
+        ArrayList<Thread> users = new ArrayList<>();
+        for (int i = 0; i <= BACKGROUND_THREADS; i++) {
+            final int compId = i + 1;
+            final boolean urgent = i == BACKGROUND_THREADS;
+            final List<Long> threadLatencies = new ArrayList<>();
+            latencies.add(threadLatencies);
+            users.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stopped.get()) {
+                        if (urgent) {
+                            sleep(5);
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            system.execute(new PrioritizedCopyingTransfer(new ComponentId(compId),
+                                    null, new DeviceId(1), COPY_DURATION, urgent ? urgentPriority : 0));
+                        } catch (TransferException e) {
+                            throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+                        }
+                        threadLatencies.add(System.nanoTime() - start);
+                        executeTransfer(system, compId, 1, 0, 0);
+                    }
+                }
+            }));
+        }
+        startTransferers(users);
+        sleep(PRIORITY_DURATION);
+        stopped.set(true);
+        joinTransferers(users);
+
+        long[] urgent = sortedLatencies(latencies.subList(BACKGROUND_THREADS, BACKGROUND_THREADS + 1));
+        long[] background = sortedLatencies(latencies.subList(0, BACKGROUND_THREADS));
+        System.out.printf("priority urgent=%3d urgent: ops=%5d p50=%6.2f ms p99=%6.2f ms   "
+                        + "background: ops=%6d p50=%6.2f ms p99=%6.2f ms%n",
+                urgentPriority, urgent.length, percentile(urgent, 0.5), percentile(urgent, 0.99),
+                background.length, percentile(background, 0.5), percentile(background, 0.99));
+    }
+
+    // Components are moved from device 1 to device 3 through device 2, whose
+    // slots are wanted by background threads adding and deleting components
+    // as in runPriority(). With a lease taken before the background traffic
+    // starts, the first hop of every migration does not wait in the queue.
+    private final static void runLease(boolean leased) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        deviceCapacities.put(new DeviceId(1), MIGRATIONS);
+        deviceCapacities.put(new DeviceId(2), PRIORITY_SLOTS + MIGRATIONS);
+        deviceCapacities.put(new DeviceId(3), MIGRATIONS);
+        for (int i = 0; i < MIGRATIONS; i++) {
+            initialComponentMapping.put(new ComponentId(1000 + i), new DeviceId(1));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+        SlotLease lease = null;
+        if (leased) {
+            try {
+                lease = system.leaseSlots(new DeviceId(2), MIGRATIONS, 1, TimeUnit.MINUTES);
+            } catch (TransferException e) {
+                throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+            }
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        ArrayList<Thread> background = new ArrayList<>();
+        for (int i = 0; i < BACKGROUND_THREADS; i++) {
+            final int compId = i + 1;
+            background.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stopped.get()) {
+                        executeTransfer(system, compId, 0, 2, COPY_DURATION);
+                        executeTransfer(system, compId, 2, 0, 0);
+                    }
+                }
+            }));
+        }
+        startTransferers(background);
+        // Giving background transfers time to fill the queue:
+        sleep(100);
+
+        long[] firstHops = new long[MIGRATIONS];
+        long start = System.nanoTime();
+        for (int i = 0; i < MIGRATIONS; i++) {
+            long hopStart = System.nanoTime();
+            try {
+                system.execute(new LeasedCopyingTransfer(new ComponentId(1000 + i),
+                        new DeviceId(1), new DeviceId(2), COPY_DURATION, lease));
+            } catch (TransferException e) {
+                throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+            }
+            firstHops[i] = System.nanoTime() - hopStart;
+            executeTransfer(system, 1000 + i, 2, 3, COPY_DURATION);
+        }
+        long elapsed = System.nanoTime() - start;
+        stopped.set(true);
+        joinTransferers(background);
+        if (lease != null) {
+            lease.release();
+        }
+
+        Arrays.sort(firstHops);
+        System.out.printf("lease=%d migrations=%d time=%8.1f ms first hop p50=%6.2f ms max=%6.2f ms%n",
+                leased ? 1 : 0, MIGRATIONS, elapsed / 1e6,
+                percentile(firstHops, 0.5), percentile(firstHops, 1.0));
+    }
+
+    // In every round each component is moved to the next device asynchronously.
+    // The number of perform() calls running on a device at once is counted;
+    // with the limit it should never exceed it, whatever the size of the executor.
+    private final static void runLimits(int maxConcurrentOperations) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        HashMap<DeviceId, DeviceLimits> deviceLimits = new HashMap<>();
+        for (int i = 1; i <= LIMITED_DEVICES; i++) {
+            deviceCapacities.put(new DeviceId(i), 2 * LIMITED_COMPONENTS_PER_DEVICE);
+            deviceLimits.put(new DeviceId(i), new DeviceLimits(maxConcurrentOperations, DeviceLimits.UNLIMITED, 0));
+        }
+        int components = LIMITED_DEVICES * LIMITED_COMPONENTS_PER_DEVICE;
+        for (int i = 0; i < components; i++) {
+            initialComponentMapping.put(new ComponentId(i + 1), new DeviceId(i % LIMITED_DEVICES + 1));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(components);
+        StorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping, executor, deviceLimits);
+        AtomicInteger[] running = new AtomicInteger[LIMITED_DEVICES + 1];
+        AtomicInteger peak = new AtomicInteger();
+        for (int i = 1; i <= LIMITED_DEVICES; i++) {
+            running[i] = new AtomicInteger();
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < LIMITED_ROUNDS; round++) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < components; i++) {
+                int src = (i + round) % LIMITED_DEVICES + 1;
+                int dst = src % LIMITED_DEVICES + 1;
+                futures.add(system.executeAsync(new CountingCopyingTransfer(new ComponentId(i + 1),
+                        new DeviceId(src), new DeviceId(dst), COPY_DURATION, running[src], running[dst], peak)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        System.out.printf("limits max concurrent=%d transfers=%d time=%8.1f ms peak operations on a device=%d%n",
+                maxConcurrentOperations, components * LIMITED_ROUNDS, elapsed / 1e6, peak.get());
+    }
+
+    // Components are placed on random slots and moved to other random slots.
+    // Individual transfers rely on the system to resolve the cycles among them
+    // at run time, while waves of the plan are executed one after another.
+    private final static void runPlanner(String mode) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        HashMap<ComponentId, DeviceId> targetComponentMapping = new HashMap<>();
+        List<DeviceId> slots = new ArrayList<>();
+        for (int i = 1; i <= PLANNER_DEVICES; i++) {
+            deviceCapacities.put(new DeviceId(i), PLANNER_SLOTS);
+            for (int j = 0; j < PLANNER_SLOTS; j++) {
+                slots.add(new DeviceId(i));
+            }
+        }
+        int components = (int) (PLANNER_FILL * slots.size());
+        Random random = new Random(PLANNER_DEVICES);
+        Collections.shuffle(slots, random);
+        for (int i = 0; i < components; i++) {
+            initialComponentMapping.put(new ComponentId(i + 1), slots.get(i));
+        }
+        Collections.shuffle(slots, random);
+        for (int i = 0; i < components; i++) {
+            targetComponentMapping.put(new ComponentId(i + 1), slots.get(i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(PLANNER_THREADS);
+        StorageSystemInstance system = (StorageSystemInstance) StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping, executor);
+
+        long start = System.nanoTime();
+        int waves = 1;
+        int transfers = 0;
+        if (mode.equals("individual")) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 1; i <= components; i++) {
+                DeviceId source = initialComponentMapping.get(new ComponentId(i));
+                DeviceId destination = targetComponentMapping.get(new ComponentId(i));
+                if (!source.equals(destination)) {
+                    futures.add(system.executeAsync(new CopyingTransfer(new ComponentId(i), source, destination, COPY_DURATION)));
+                }
+            }
+            transfers = futures.size();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        }
+        long planning = 0;
+        if (!mode.equals("individual")) {
+            MovePlan plan = system.planMoves(targetComponentMapping, mode.equals("buffers"));
+            planning = System.nanoTime() - start;
+            waves = plan.getWaves().size();
+            transfers = plan.getTransfers();
+            if (!plan.execute(system, transfer -> new CopyingTransfer(transfer.getComponentId(),
+                    transfer.getSourceDeviceId(), transfer.getDestinationDeviceId(), COPY_DURATION)).isEmpty()) {
+                throw new RuntimeException("Transfer of the plan failed");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        System.out.printf("planner mode=%-10s devices=%d components=%d plan=%8.1f ms total=%8.1f ms "
+                        + "waves=%3d transfers=%6d cycles=%d%n",
+                mode, PLANNER_DEVICES, components, planning / 1e6, elapsed / 1e6,
+                waves, transfers, system.getMetrics().getCyclesResolved());
+    }
+
+    // Half of the slots are filled. Every writer moves its own component to the
+    // next device over and over, while readers locate random components and
+    // count free places. Queries take no locks, so their throughput should
+    // not drop much with writers running.
+    private final static void runQueries(int writers) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        for (int i = 1; i <= QUERY_DEVICES; i++) {
+            deviceCapacities.put(new DeviceId(i), QUERY_SLOTS);
+        }
+        int components = QUERY_DEVICES * QUERY_SLOTS / 2;
+        for (int i = 1; i <= components; i++) {
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(i % QUERY_DEVICES + 1));
+        }
+        StorageSystemInstance system = (StorageSystemInstance) StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger moves = new AtomicInteger();
+        List<Thread> users = new ArrayList<>();
+        for (int w = 1; w <= writers; w++) {
+            final int compId = w;
+            users.add(new Thread(() -> {
+                int device = compId % QUERY_DEVICES + 1;
+                while (running.get()) {
+                    int next = device % QUERY_DEVICES + 1;
+                    executeTransfer(system, compId, device, next, 0);
+                    device = next;
+                    moves.incrementAndGet();
+                }
+            }));
+        }
+        long[] lookups = new long[QUERY_READERS];
+        for (int r = 0; r < QUERY_READERS; r++) {
+            final int reader = r;
+            users.add(new Thread(() -> {
+                Random random = new Random(reader);
+                long count = 0;
+                while (running.get()) {
+                    ComponentId component = ComponentId.of(random.nextInt(components) + 1);
+                    DeviceId device = system.locate(component);
+                    if (device == null || system.freeSlots(device) < 0) {
+                        throw new RuntimeException("Component lost: " + component);
+                    }
+                    count++;
+                }
+                lookups[reader] = count;
+            }));
+        }
+        startTransferers(users);
+        long views = 0;
+        long viewing = 0;
+        long end = System.nanoTime() + QUERY_DURATION * 1_000_000;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            if (system.viewPlacement().size() != components) {
+                throw new RuntimeException("Components lost in a view");
+            }
+            viewing += System.nanoTime() - start;
+            views++;
+            sleep(10);
+        }
+        running.set(false);
+        joinTransferers(users);
+
+        System.out.printf("queries writers=%d readers=%d lookups=%6.2f M/s moves=%8d view=%6.2f ms%n",
+                writers, QUERY_READERS, Arrays.stream(lookups).sum() / (QUERY_DURATION * 1e3),
+                moves.get(), viewing / (views * 1e6));
+    }
+
+    private final static long[] sortedLatencies(List<List<Long>> latencies) {
+        long[] result = latencies.stream().flatMap(List::stream).mapToLong(Long::longValue).toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    // In milliseconds:
+    private final static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private final static Thread addThenDelete(StorageSystem system, int compId, int devId) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executeTransfer(system, compId, 0, devId, 0);
+                executeTransfer(system, compId, devId, 0, 0);
+            }
+        });
+    }
+
+    private final static void runTransferers(Collection<Thread> users) {
+        startTransferers(users);
+        joinTransferers(users);
+    }
+
+    private final static void startTransferers(Collection<Thread> users) {
+        for (Thread t : users) {
+            t.start();
+        }
+    }
+
+    private final static void joinTransferers(Collection<Thread> users) {
+        for (Thread t : users) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("panic: unexpected thread interruption", e);
+            }
+        }
+    }
+
+    private final static void executeTransfer(
+            StorageSystem system,
+            int compId,
+            int srcDevId,
+            int dstDevId,
+            long duration
+    ) {
+        try {
+            system.execute(new CopyingTransfer(
+                    ComponentId.of(compId),
+                    srcDevId > 0 ? DeviceId.of(srcDevId) : null,
+                    dstDevId > 0 ? DeviceId.of(dstDevId) : null,
+                    duration));
+        } catch (TransferException e) {
+            throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+        }
+    }
+
+    private final static void sleep(long duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+
+    // Transfer that pretends to copy data for a given time in perform():
+    private static class CopyingTransfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long duration;
+
+        public CopyingTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                long duration
+        ) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.duration = duration;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+
+        }
+
+        @Override
+        public void perform() {
+            if (this.duration > 0) {
+                sleep(this.duration);
+            }
+        }
+    }
+
+    private final static class PrioritizedCopyingTransfer extends CopyingTransfer implements PrioritizedTransfer {
+        private final int priority;
+
+        public PrioritizedCopyingTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                long duration,
+                int priority
+        ) {
+            super(compId, srcDevId, dstDevId, duration);
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return this.priority;
+        }
+    }
+
+    // Counts perform() calls running on its devices, and the highest count seen:
+    private final static class CountingCopyingTransfer extends CopyingTransfer {
+        private final AtomicInteger srcRunning;
+        private final AtomicInteger dstRunning;
+        private final AtomicInteger peak;
+
+        public CountingCopyingTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                long duration,
+                AtomicInteger srcRunning,
+                AtomicInteger dstRunning,
+                AtomicInteger peak
+        ) {
+            super(compId, srcDevId, dstDevId, duration);
+            this.srcRunning = srcRunning;
+            this.dstRunning = dstRunning;
+            this.peak = peak;
+        }
+
+        @Override
+        public void perform() {
+            peak.accumulateAndGet(srcRunning.incrementAndGet(), Math::max);
+            peak.accumulateAndGet(dstRunning.incrementAndGet(), Math::max);
+            super.perform();
+            srcRunning.decrementAndGet();
+            dstRunning.decrementAndGet();
+        }
+    }
+
+    // Counts components on its devices, where counters are given: a component
+    // leaves its source once prepared and arrives at its destination when it
+    // is performed. Keeps the highest count seen on the destination.
+    private final static class OccupyingTransfer extends CopyingTransfer {
+        private final AtomicInteger srcComponents;
+        private final AtomicInteger dstComponents;
+        private final AtomicInteger peak;
+
+        public OccupyingTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                AtomicInteger srcComponents,
+                AtomicInteger dstComponents,
+                AtomicInteger peak
+        ) {
+            super(compId, srcDevId, dstDevId, 0);
+            this.srcComponents = srcComponents;
+            this.dstComponents = dstComponents;
+            this.peak = peak;
+        }
+
+        @Override
+        public void prepare() {
+            if (srcComponents != null) {
+                srcComponents.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void perform() {
+            if (dstComponents != null) {
+                peak.accumulateAndGet(dstComponents.incrementAndGet(), Math::max);
+            }
+        }
+    }
+
+    private final static class LeasedCopyingTransfer extends CopyingTransfer implements LeasedTransfer {
+        private final SlotLease lease;
+
+        public LeasedCopyingTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                long duration,
+                SlotLease lease
+        ) {
+            super(compId, srcDevId, dstDevId, duration);
+            this.lease = lease;
+        }
+
+        @Override
+        public SlotLease getLease() {
+            return this.lease;
+        }
+    }
+
+}
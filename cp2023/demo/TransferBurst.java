@@ -183,9 +183,9 @@ public final class TransferBurst {
     ) {
         CompTransfImpl transfer =
                 new CompTransfImpl(
-                        new ComponentId(compId),
-                        srcDevId > 0 ? new DeviceId(srcDevId) : null,
-                        dstDevId > 0 ? new DeviceId(dstDevId) : null,
+                        ComponentId.of(compId),
+                        srcDevId > 0 ? DeviceId.of(srcDevId) : null,
+                        dstDevId > 0 ? DeviceId.of(dstDevId) : null,
                         duration
                 );
         try {
@@ -0,0 +1,409 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemInstance;
+import cp2023.solution.StorageSystemMetrics;
+import cp2023.solution.TransferJournal;
+
+
+// Configurable workload measuring throughput and latency percentiles of
+// StorageSystem.execute. Parameters are given as key=value pairs:
+//
+//   devices   - number of devices,
+//   slots     - number of slots of every device,
+//   fill      - part of all slots occupied by components at the start,
+//   threads   - number of threads executing transfers,
+//   churn     - percentage of operations deleting a component (a deleted
+//               component is added back by the next operation of its thread),
+//   rotation  - if positive, devices are full and split into groups of this
+//               size, and every component moves around its group, so every
+//               transfer is a part of a cycle (fill, threads and churn are ignored),
+//   copy      - duration of perform() in microseconds,
+//   warmup    - duration of the warmup in milliseconds,
+//   measure   - duration of the measurement in milliseconds,
+//   metrics   - if 1, metrics of the system are enabled and printed after
+//               the report,
+//   journal   - if 1, the system is created from a snapshot in a temporary
+//               directory and records transfers in a journal there.
+//
+// Every thread owns exactly one moving component, and components that never
+// move leave at least one slot on every device to moving ones. This way
+// threads never wait for each other in a way the system cannot see, and the
+// workload cannot deadlock by itself.
+public final class TransferWorkload {
+
+    private int devices = 64;
+    private int slots = 4;
+    private double fill = 0.75;
+    private int threads = 8;
+    private int churn = 0;
+    private int rotation = 0;
+    private long copy = 0;
+    private long warmup = 500;
+    private long measure = 2000;
+    private boolean metrics = false;
+    private boolean journal = false;
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    public TransferWorkload(String... parameters) {
+        for (String parameter : parameters) {
+            String[] keyValue = parameter.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Parameter is not a key=value pair: " + parameter);
+            }
+            String value = keyValue[1];
+            switch (keyValue[0]) {
+                case "devices": devices = Integer.parseInt(value); break;
+                case "slots": slots = Integer.parseInt(value); break;
+                case "fill": fill = Double.parseDouble(value); break;
+                case "threads": threads = Integer.parseInt(value); break;
+                case "churn": churn = Integer.parseInt(value); break;
+                case "rotation": rotation = Integer.parseInt(value); break;
+                case "copy": copy = Long.parseLong(value); break;
+                case "warmup": warmup = Long.parseLong(value); break;
+                case "measure": measure = Long.parseLong(value); break;
+                case "metrics": metrics = Integer.parseInt(value) != 0; break;
+                case "journal": journal = Integer.parseInt(value) != 0; break;
+                default: throw new IllegalArgumentException("Unknown parameter: " + keyValue[0]);
+            }
+        }
+    }
+
+    // Returns the throughput measured, in operations per second.
+    public double run() {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+        for (int i = 1; i <= devices; i++) {
+            deviceCapacities.put(new DeviceId(i), slots);
+        }
+        ArrayList<Mover> movers = new ArrayList<>();
+        if (rotation > 0) {
+            setupRotation(initialComponentMapping, movers);
+        } else {
+            setupRandom(initialComponentMapping, movers);
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, initialComponentMapping);
+        Path directory = null;
+        if (journal) {
+            try {
+                directory = Files.createTempDirectory("workload");
+                ((StorageSystemInstance) system).writeSnapshot(directory.resolve("snapshot"));
+                system = StorageSystemFactory.newSystemFromSnapshot(directory.resolve("snapshot"),
+                        directory.resolve("journal"), ForkJoinPool.commonPool());
+            } catch (IOException e) {
+                throw new RuntimeException("Journal could not be created", e);
+            }
+        }
+        StorageSystem journaledSystem = system;
+        StorageSystemMetrics systemMetrics = ((StorageSystemInstance) system).getMetrics();
+        systemMetrics.setEnabled(metrics);
+
+        ArrayList<Thread> workers = new ArrayList<>();
+        for (Mover mover : movers) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mover.run(journaledSystem);
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        sleep(warmup);
+        measuring = true;
+        long start = System.nanoTime();
+        sleep(measure);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("panic: unexpected thread interruption", e);
+            }
+        }
+
+        double throughput = report(movers, elapsed);
+        if (metrics) {
+            System.out.println("  " + systemMetrics);
+            System.out.println("  admission wait:   " + systemMetrics.getAdmissionWait());
+            System.out.println("  prepare:          " + systemMetrics.getPrepare());
+            System.out.println("  predecessor wait: " + systemMetrics.getPredecessorWait());
+            System.out.println("  perform:          " + systemMetrics.getPerform());
+            System.out.println("  total:            " + systemMetrics.getTotal());
+            System.out.println("  device lock hold: " + systemMetrics.getDeviceLockHold());
+            System.out.println("  cycle search:     " + systemMetrics.getCycleSearch());
+        }
+        if (journal) {
+            TransferJournal transferJournal = ((StorageSystemInstance) system).getJournal();
+            System.out.printf("  journal records=%d flushes=%d records/flush=%.1f%n",
+                    transferJournal.getRecords(), transferJournal.getFlushes(),
+                    (double) transferJournal.getRecords() / Math.max(transferJournal.getFlushes(), 1));
+            try {
+                transferJournal.close();
+                Files.delete(directory.resolve("journal"));
+                Files.delete(directory.resolve("snapshot"));
+                Files.delete(directory);
+            } catch (IOException e) {
+                throw new RuntimeException("Journal could not be removed", e);
+            }
+        }
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        if (rotation > 0) {
+            return String.format("devices=%d slots=%d rotation=%d copy=%d metrics=%d journal=%d",
+                    devices, slots, rotation, copy, metrics ? 1 : 0, journal ? 1 : 0);
+        }
+        return String.format("devices=%d slots=%d fill=%.2f threads=%d churn=%d copy=%d metrics=%d journal=%d",
+                devices, slots, fill, threads, churn, copy, metrics ? 1 : 0, journal ? 1 : 0);
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private void setupRandom(Map<ComponentId, DeviceId> placement, ArrayList<Mover> movers) {
+        int components = (int) (fill * devices * slots);
+        int fixed = components - threads;
+        if (fixed < 0) {
+            throw new IllegalArgumentException("More threads than components");
+        }
+        if (fixed > devices * (slots - 1)) {
+            throw new IllegalArgumentException("Not enough threads to fill the devices");
+        }
+        int[] occupied = new int[devices + 1];
+        int componentId = 1;
+        // Components that never move are spread evenly:
+        for (int i = 0; i < fixed; i++) {
+            int device = i % devices + 1;
+            placement.put(new ComponentId(componentId++), new DeviceId(device));
+            occupied[device]++;
+        }
+        int device = 1;
+        for (int i = 0; i < threads; i++) {
+            while (occupied[device] == slots) {
+                device = device % devices + 1;
+            }
+            placement.put(new ComponentId(componentId), new DeviceId(device));
+            occupied[device]++;
+            movers.add(new Mover(componentId, device, null, componentId));
+            componentId++;
+            device = device % devices + 1;
+        }
+    }
+
+    private void setupRotation(Map<ComponentId, DeviceId> placement, ArrayList<Mover> movers) {
+        if (devices % rotation != 0) {
+            throw new IllegalArgumentException("Devices cannot be split into groups of size " + rotation);
+        }
+        int componentId = 1;
+        for (int device = 1; device <= devices; device++) {
+            int groupStart = (device - 1) / rotation * rotation + 1;
+            int[] group = new int[rotation];
+            for (int i = 0; i < rotation; i++) {
+                group[i] = groupStart + (device - groupStart + i) % rotation;
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                placement.put(new ComponentId(componentId), new DeviceId(device));
+                movers.add(new Mover(componentId, device, group, componentId));
+                componentId++;
+            }
+        }
+    }
+
+    private double report(ArrayList<Mover> movers, long elapsed) {
+        long operations = 0;
+        long adds = 0;
+        long deletes = 0;
+        for (Mover mover : movers) {
+            operations += mover.latencies.size();
+            adds += mover.adds;
+            deletes += mover.deletes;
+        }
+        long[] latencies = new long[(int) operations];
+        int i = 0;
+        for (Mover mover : movers) {
+            System.arraycopy(mover.latencies.values, 0, latencies, i, mover.latencies.size());
+            i += mover.latencies.size();
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%s: ops=%d (adds=%d deletes=%d) throughput=%.1f ops/s "
+                        + "latency us p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                this, operations, adds, deletes, operations * 1e9 / elapsed,
+                percentile(latencies, 0.5), percentile(latencies, 0.9),
+                percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1.0));
+        return operations * 1e9 / elapsed;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+
+    private static void sleep(long duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+
+    // Thread owning a single component, moving it until the workload is stopped:
+    private final class Mover {
+        private final int componentId;
+        private final int[] group;
+        private final Random random;
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private int device;
+        private long adds;
+        private long deletes;
+
+        public Mover(int componentId, int device, int[] group, long seed) {
+            this.componentId = componentId;
+            this.device = device;
+            this.group = group;
+            this.random = new Random(seed);
+        }
+
+        public void run(StorageSystem system) {
+            int step = 0;
+            while (!stopped) {
+                int destination;
+                if (group != null) {
+                    destination = group[++step % group.length];
+                } else if (device == 0) {
+                    destination = random.nextInt(devices) + 1;
+                } else if (random.nextInt(100) < churn) {
+                    destination = 0;
+                } else {
+                    destination = random.nextInt(devices - 1) + 1;
+                    if (destination >= device) {
+                        destination++;
+                    }
+                }
+                boolean measured = measuring;
+                long start = System.nanoTime();
+                execute(system, destination);
+                if (measured && measuring) {
+                    latencies.add(System.nanoTime() - start);
+                    if (device == 0) {
+                        adds++;
+                    } else if (destination == 0) {
+                        deletes++;
+                    }
+                }
+                device = destination;
+            }
+            // Deleting the component releases every transfer that might be waiting for it:
+            if (device != 0) {
+                execute(system, 0);
+            }
+        }
+
+        private void execute(StorageSystem system, int destination) {
+            try {
+                system.execute(new WorkloadTransfer(
+                        new ComponentId(componentId),
+                        device > 0 ? new DeviceId(device) : null,
+                        destination > 0 ? new DeviceId(destination) : null,
+                        copy));
+            } catch (TransferException e) {
+                throw new RuntimeException("Uexpected transfer exception: " + e.toString(), e);
+            }
+        }
+    }
+
+    private final static class LatencyRecorder {
+        private long[] values = new long[1024];
+        private int size;
+
+        public void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    private final static class WorkloadTransfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long duration;
+
+        public WorkloadTransfer(
+                ComponentId compId,
+                DeviceId srcDevId,
+                DeviceId dstDevId,
+                long duration
+        ) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.duration = duration;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+
+        }
+
+        @Override
+        public void perform() {
+            if (this.duration > 0) {
+                long end = System.nanoTime() + this.duration * 1000;
+                while (System.nanoTime() < end) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+}
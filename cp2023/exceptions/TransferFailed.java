@@ -0,0 +1,27 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+
+// The transfer has been admitted, but it has not been completed, because
+// prepare() or perform() has thrown, or its record could not be journaled.
+// What has been thrown is the cause.
+public final class TransferFailed extends TransferException {
+
+    private static final long serialVersionUID = -1718026930612484547L;
+
+    private final ComponentId compId;
+
+    public TransferFailed(ComponentId compId, Throwable cause) {
+        super("transfer of component " + compId.toString() + " has failed");
+        this.compId = compId;
+        initCause(cause);
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+
+// The thread executing the transfer has been interrupted while the transfer
+// was waiting for a place, and the transfer has been withdrawn.
+public final class TransferInterrupted extends TransferException {
+
+    private static final long serialVersionUID = 3046318593152447702L;
+
+    private final ComponentId compId;
+
+    public TransferInterrupted(ComponentId compId) {
+        super("transfer of component " + compId.toString() + " has been interrupted");
+        this.compId = compId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+}
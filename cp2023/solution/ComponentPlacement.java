@@ -0,0 +1,193 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+// Device of every component in the system, as a map from component ids to
+// indices of devices. The map is split into segments, each with its own
+// mutex, so components of different segments can be updated concurrently.
+//
+// A component can be claimed by a transfer, which marks it as being operated
+// on in the same entry. Entries are encoded as 2 * (deviceIndex + 1) plus one
+// if the component is claimed, so an entry is also kept for a claimed
+// component that is not in the system yet.
+//
+// Segments are only read optimistically, as under a seqlock: a reader copies
+// what it needs and retries if the segment has been locked meanwhile, so
+// readers never block transfers nor are blocked by them, except for spinning
+// while a segment is being updated.
+public class ComponentPlacement {
+    public static final int MISSING = IntIntHashMap.MISSING;
+    // Returned by claim() if the component has already been claimed:
+    public static final int CLAIMED = -2;
+
+    private static final int SEGMENTS = 64;
+
+    private final IntIntHashMap[] segments = new IntIntHashMap[SEGMENTS];
+    private final StampedLock[] locks = new StampedLock[SEGMENTS];
+
+    // Segments as they were when the current call of entries() started, or null
+    // if there is none. A segment is saved either by entries() itself or by the
+    // first update of a device of its component after the start, before the
+    // update, whichever comes first. Calls of entries() are made one at a time
+    // with the mutex:
+    private volatile AtomicReferenceArray<long[]> savedSegments;
+    private final Semaphore entriesMutex = new Semaphore(1);
+
+    public ComponentPlacement(int expectedSize) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new IntIntHashMap(expectedSize / SEGMENTS);
+            locks[i] = new StampedLock();
+        }
+    }
+
+    // Returns the index of the device of the component, or MISSING if there is
+    // none. A claimed component is on the device it had before it was claimed.
+    public int get(int componentId) {
+        int segment = segment(componentId);
+        while (true) {
+            long stamp = locks[segment].tryOptimisticRead();
+            if (stamp != 0) {
+                int entry = segments[segment].getRacy(componentId);
+                if (locks[segment].validate(stamp)) {
+                    return entry == IntIntHashMap.MISSING ? MISSING : deviceIndex(entry);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Places a component that is not claimed. Returns false if the component
+    // has already been placed.
+    public boolean put(int componentId, int deviceIndex) {
+        int segment = segment(componentId);
+        long stamp = locks[segment].writeLock();
+        saveSegment(segment);
+        int previous = segments[segment].put(componentId, entry(deviceIndex, false));
+        locks[segment].unlockWrite(stamp);
+        return previous == IntIntHashMap.MISSING;
+    }
+
+    // Returns every component in the system with the index of its device, as
+    // the id in the upper and the index in the lower half of a long. A claimed
+    // component is returned with the device it had before it was claimed.
+    // The placement is returned as it was at the start of the call.
+    public long[] entries() {
+        entriesMutex.acquireUninterruptibly();
+        AtomicReferenceArray<long[]> saved = new AtomicReferenceArray<>(SEGMENTS);
+        savedSegments = saved;
+        long[][] copies = new long[SEGMENTS][];
+        int size = 0;
+        for (int segment = 0; segment < SEGMENTS; segment++) {
+            copies[segment] = copySegment(segment, saved);
+            size += copies[segment].length;
+        }
+        savedSegments = null;
+        entriesMutex.release();
+
+        long[] entries = new long[size];
+        int position = 0;
+        for (long[] copy : copies) {
+            System.arraycopy(copy, 0, entries, position, copy.length);
+            position += copy.length;
+        }
+        return entries;
+    }
+
+    // Claims the component and returns the index of its device, or MISSING if
+    // there is none. Returns CLAIMED if the component has already been claimed.
+    public int claim(int componentId) {
+        int segment = segment(componentId);
+        long stamp = locks[segment].writeLock();
+        int entry = segments[segment].get(componentId);
+        int deviceIndex;
+        if (entry == IntIntHashMap.MISSING) {
+            deviceIndex = MISSING;
+            segments[segment].put(componentId, entry(MISSING, true));
+        } else if (isClaimed(entry)) {
+            deviceIndex = CLAIMED;
+        } else {
+            deviceIndex = deviceIndex(entry);
+            segments[segment].put(componentId, entry(deviceIndex, true));
+        }
+        locks[segment].unlockWrite(stamp);
+        return deviceIndex;
+    }
+
+    // Drops the claim without changing the device of the component.
+    public void unclaim(int componentId) {
+        int segment = segment(componentId);
+        long stamp = locks[segment].writeLock();
+        int deviceIndex = deviceIndex(segments[segment].get(componentId));
+        if (deviceIndex == MISSING) {
+            segments[segment].remove(componentId);
+        } else {
+            segments[segment].put(componentId, entry(deviceIndex, false));
+        }
+        locks[segment].unlockWrite(stamp);
+    }
+
+    // Drops the claim and moves the component to the device, or removes it
+    // from the system if the index is MISSING.
+    public void release(int componentId, int deviceIndex) {
+        int segment = segment(componentId);
+        long stamp = locks[segment].writeLock();
+        saveSegment(segment);
+        if (deviceIndex == MISSING) {
+            segments[segment].remove(componentId);
+        } else {
+            segments[segment].put(componentId, entry(deviceIndex, false));
+        }
+        locks[segment].unlockWrite(stamp);
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    // Claims do not change devices of components, so only other updates save
+    // the segment. The segment has to be locked.
+    private void saveSegment(int segment) {
+        AtomicReferenceArray<long[]> saved = savedSegments;
+        if (saved != null && saved.get(segment) == null) {
+            saved.compareAndSet(segment, null, segments[segment].entriesRacy(ComponentPlacement::deviceIndex));
+        }
+    }
+
+    // A segment is copied while it is not updated and the copy is saved, unless
+    // an update after the start of entries() has saved the segment first - then
+    // that copy is taken. Updates that have not seen the start save nothing,
+    // but they are done before the segment is copied.
+    private long[] copySegment(int segment, AtomicReferenceArray<long[]> saved) {
+        while (true) {
+            long stamp = locks[segment].tryOptimisticRead();
+            if (stamp != 0) {
+                long[] copy = segments[segment].entriesRacy(ComponentPlacement::deviceIndex);
+                if (locks[segment].validate(stamp)) {
+                    return saved.compareAndSet(segment, null, copy) ? copy : saved.get(segment);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static int entry(int deviceIndex, boolean claimed) {
+        return 2 * (deviceIndex + 1) + (claimed ? 1 : 0);
+    }
+
+    private static int deviceIndex(int entry) {
+        return entry / 2 - 1;
+    }
+
+    private static boolean isClaimed(int entry) {
+        return entry % 2 == 1;
+    }
+
+    // Consecutive ids go to different segments:
+    private static int segment(int componentId) {
+        return componentId & (SEGMENTS - 1);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+// Limits of operations on a single device, given to StorageSystemFactory.
+// An operation is prepare() or perform() of a transfer from or to the device.
+// At most maxConcurrentOperations of them run at once, and they are started
+// at most operationsPerSecond times per second, with up to burst of them
+// started at once after the device has been idle. Limits equal to UNLIMITED
+// are not enforced.
+public class DeviceLimits {
+    public static final int UNLIMITED = 0;
+
+    private final int maxConcurrentOperations;
+    private final int operationsPerSecond;
+    private final int burst;
+
+    public DeviceLimits(int maxConcurrentOperations, int operationsPerSecond, int burst) {
+        this.maxConcurrentOperations = maxConcurrentOperations;
+        this.operationsPerSecond = operationsPerSecond;
+        this.burst = burst;
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    public int getMaxConcurrentOperations() {
+        return maxConcurrentOperations;
+    }
+
+    public int getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+}
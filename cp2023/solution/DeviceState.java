@@ -0,0 +1,171 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Part of the system status that belongs to a single device.
+// Everything here is guarded by the mutex of the device, except for
+// the data of the wait-for graph, which is guarded by the mutex of the graph.
+public class DeviceState implements Comparable<DeviceState> {
+    private final DeviceId deviceId;
+    // Position of the device in the array of devices of the system:
+    private final int index;
+    private final int totalSlots;
+    private final Semaphore mutex = new Semaphore(1);
+    // Limits of operations on the device, or null if there are none:
+    private final DeviceThrottle throttle;
+
+    // Places that are neither occupied nor reserved by any transfer. A place
+    // can be taken without the mutex, but places are only given back with it,
+    // so a transfer that has found no place under the mutex can safely wait:
+    private final AtomicInteger freeSlots;
+
+    // If a transfer is waiting for a place on this device to be released, it is here.
+    // Changing the queue also requires the mutex of the wait-for graph:
+    private final WaitingTransferQueue waitingTransfers = new WaitingTransferQueue();
+
+    // If a transfer is leaving this device and nobody has claimed
+    // the place it releases yet, it is here:
+    private final WrappedTransferQueue readyTransfers = new WrappedTransferQueue();
+
+    // Wait-for graph data - edges with their multiplicities, by indices of
+    // devices at their other ends, position of the device in the topological
+    // order and the state of the last search. Maps of edges are created when
+    // the device is first reached by the graph, and kept afterwards:
+    private IntIntHashMap outEdges;
+    private IntIntHashMap inEdges;
+    private int order;
+    private int searchMark;
+    private DeviceState searchParent;
+
+    public DeviceState(DeviceId deviceId, int index, int totalSlots, int freeSlots, DeviceThrottle throttle) {
+        this.deviceId = deviceId;
+        this.index = index;
+        this.totalSlots = totalSlots;
+        this.throttle = throttle;
+        this.freeSlots = new AtomicInteger(freeSlots);
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    public DeviceId getDeviceId() {
+        return deviceId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getTotalSlots() {
+        return totalSlots;
+    }
+
+    public DeviceThrottle getThrottle() {
+        return throttle;
+    }
+
+    public int getFreeSlots() {
+        return freeSlots.get();
+    }
+
+    public WaitingTransferQueue getWaitingTransfers() {
+        return waitingTransfers;
+    }
+
+    public WrappedTransferQueue getReadyTransfers() {
+        return readyTransfers;
+    }
+
+    public IntIntHashMap getOutEdges() {
+        if (outEdges == null) {
+            outEdges = new IntIntHashMap(0);
+        }
+        return outEdges;
+    }
+
+    public IntIntHashMap getInEdges() {
+        if (inEdges == null) {
+            inEdges = new IntIntHashMap(0);
+        }
+        return inEdges;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public void setOrder(int order) {
+        this.order = order;
+    }
+
+    public int getSearchMark() {
+        return searchMark;
+    }
+
+    public void setSearchMark(int searchMark) {
+        this.searchMark = searchMark;
+    }
+
+    public DeviceState getSearchParent() {
+        return searchParent;
+    }
+
+    public void setSearchParent(DeviceState searchParent) {
+        this.searchParent = searchParent;
+    }
+
+    // ------------------ Free slots operations ------------------
+
+    // Takes a free place, if there is one; the mutex is not needed.
+    public boolean tryReserveSlot() {
+        int current = freeSlots.get();
+        while (current > 0) {
+            if (freeSlots.compareAndSet(current, current - 1)) {
+                return true;
+            }
+            current = freeSlots.get();
+        }
+        return false;
+    }
+
+    // Takes the given number of free places at once, if there are enough of them.
+    public boolean tryReserveSlots(int slots) {
+        int current = freeSlots.get();
+        while (current >= slots) {
+            if (freeSlots.compareAndSet(current, current - slots)) {
+                return true;
+            }
+            current = freeSlots.get();
+        }
+        return false;
+    }
+
+    // The device has to be locked.
+    public void releaseSlot() {
+        freeSlots.incrementAndGet();
+    }
+
+    // ------------------ Mutex operations ------------------
+
+    // The mutex is held only for a short time, so waiting for it is not
+    // interrupted; the interruption status of the thread is preserved.
+    public void lock() {
+        mutex.acquireUninterruptibly();
+    }
+
+    public void unlock() {
+        mutex.release();
+    }
+
+    // Devices are always locked in the order of their ids to avoid deadlocks:
+    @Override
+    public int compareTo(DeviceState other) {
+        return deviceId.compareTo(other.deviceId);
+    }
+}
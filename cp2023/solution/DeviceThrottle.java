@@ -0,0 +1,93 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Enforces DeviceLimits of a single device. Nothing here ever blocks: an
+// operation that has to wait leaves a callback, which is run once it may
+// start, so the same throttle serves transfers of both kinds. The mutex of
+// the throttle is independent of the mutex of the device.
+public class DeviceThrottle {
+    private final int maxConcurrentOperations;
+    private final Semaphore mutex = new Semaphore(1);
+    // Guarded by the mutex:
+    private int runningOperations;
+    private final ArrayDeque<Runnable> waitingOperations = new ArrayDeque<>();
+
+    // Token bucket, kept as the time at which the bucket would be empty if no
+    // more tokens were taken (a theoretical arrival time), so no refilling
+    // is needed. Times are values of System.nanoTime(), intervals are in ns:
+    private final long tokenInterval;
+    private final long burstTolerance;
+    private final AtomicLong emptyTime;
+
+    public DeviceThrottle(DeviceLimits limits) {
+        this.maxConcurrentOperations = limits.getMaxConcurrentOperations();
+        if (limits.getOperationsPerSecond() == DeviceLimits.UNLIMITED) {
+            this.tokenInterval = 0;
+            this.burstTolerance = 0;
+        } else {
+            this.tokenInterval = 1_000_000_000L / limits.getOperationsPerSecond();
+            this.burstTolerance = tokenInterval * (Math.max(limits.getBurst(), 1) - 1);
+        }
+        this.emptyTime = new AtomicLong(System.nanoTime());
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    // Takes a token for an operation, going into debt if there are none left.
+    // Returns how long the operation has to wait before it starts (in ns).
+    public long reserveToken() {
+        if (tokenInterval == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long current = emptyTime.get();
+        while (true) {
+            long next = Math.max(current, now) + tokenInterval;
+            if (emptyTime.compareAndSet(current, next)) {
+                return Math.max(current - burstTolerance - now, 0);
+            }
+            current = emptyTime.get();
+        }
+    }
+
+    // Starts an operation, if fewer than the maximum are running. Otherwise
+    // the callback is run when a running operation ends, and the operation
+    // is started then. Returns true if it has been started at once.
+    public boolean tryStart(Runnable whenStarted) {
+        if (maxConcurrentOperations == DeviceLimits.UNLIMITED) {
+            return true;
+        }
+        mutex.acquireUninterruptibly();
+        boolean started = runningOperations < maxConcurrentOperations;
+        if (started) {
+            runningOperations++;
+        } else {
+            waitingOperations.add(whenStarted);
+        }
+        mutex.release();
+        return started;
+    }
+
+    // The place of the ended operation is given to the first waiting one.
+    public void end() {
+        if (maxConcurrentOperations == DeviceLimits.UNLIMITED) {
+            return;
+        }
+        mutex.acquireUninterruptibly();
+        Runnable next = waitingOperations.poll();
+        if (next == null) {
+            runningOperations--;
+        }
+        mutex.release();
+        if (next != null) {
+            next.run();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+// Map from ints to non-negative ints, stored in two arrays with open addressing
+// and linear probing, so neither keys nor values are boxed. Removal shifts
+// the following entries back instead of leaving tombstones.
+// The map is not thread-safe, but it can be read optimistically - see getRacy().
+public class IntIntHashMap {
+    public static final int MISSING = -1;
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private int[] keys;
+    // Values are stored increased by one, so an empty slot has value 0:
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public IntIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Entries can be iterated over by their slots, from 0 to capacity() - 1:
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return values[slot] != 0;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot] - 1;
+    }
+
+    // Returns the value of the key, or MISSING if there is none.
+    public int get(int key) {
+        for (int i = hash(key) & mask; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i] - 1;
+            }
+        }
+        return MISSING;
+    }
+
+    // As get(), but may be called while the map is modified by another thread.
+    // The result is arbitrary then, so it has to be validated afterwards,
+    // but the call always ends and never fails. Arrays are read once, so
+    // a concurrent resize cannot make the indices go out of bounds.
+    public int getRacy(int key) {
+        int[] currentKeys = keys;
+        int[] currentValues = values;
+        if (currentKeys.length != currentValues.length) {
+            return MISSING;
+        }
+        int currentMask = currentKeys.length - 1;
+        int i = hash(key) & currentMask;
+        for (int probes = 0; probes < currentKeys.length && currentValues[i] != 0; probes++) {
+            if (currentKeys[i] == key) {
+                return currentValues[i] - 1;
+            }
+            i = (i + 1) & currentMask;
+        }
+        return MISSING;
+    }
+
+    // Returns entries as keys in the upper and values in the lower half of
+    // a long. The filter maps every value to the one returned, or to MISSING
+    // if the entry is skipped. May be called while the map is modified, with
+    // the same guarantees as getRacy().
+    public long[] entriesRacy(IntUnaryOperator filter) {
+        int[] currentKeys = keys;
+        int[] currentValues = values;
+        int length = Math.min(currentKeys.length, currentValues.length);
+        long[] entries = new long[length];
+        int size = 0;
+        for (int slot = 0; slot < length; slot++) {
+            if (currentValues[slot] != 0) {
+                int value = filter.applyAsInt(currentValues[slot] - 1);
+                if (value != MISSING) {
+                    entries[size++] = (long) currentKeys[slot] << 32 | value;
+                }
+            }
+        }
+        return Arrays.copyOf(entries, size);
+    }
+
+    // Returns the previous value of the key, or MISSING if there was none.
+    public int put(int key, int value) {
+        int i = hash(key) & mask;
+        for (; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int previous = values[i] - 1;
+                values[i] = value + 1;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value + 1;
+        if (++size > maximumSize(keys.length)) {
+            resize(2 * keys.length);
+        }
+        return MISSING;
+    }
+
+    // Returns the removed value, or MISSING if there was none.
+    public int remove(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            return MISSING;
+        }
+        int removed = values[i] - 1;
+        // Entries that would not be found after emptying the slot are moved back:
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = 0;
+        size--;
+        return removed;
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    // Final mixing function of MurmurHash3, so that ids with a common stride
+    // do not end up in neighbouring slots:
+    private static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int maximumSize(int capacity) {
+        return capacity / 4 * 3;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (maximumSize(capacity) < expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int j = hash(oldKeys[i]) & mask;
+                while (values[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Histogram of durations in nanoseconds with log-linear buckets, as in HDR
+// histograms: every power of two is split into 16 buckets, so a percentile is
+// reported with an error of at most 1/16 of its value. Durations of up to
+// 2^40 ns (about 18 minutes) are distinguished, longer ones share the last bucket.
+// Recording is lock-free and can be done concurrently with reading.
+//
+// Like the cells of a LongAdder, the histogram is split into stripes, and
+// a thread records only to the stripe chosen by its id, so threads recording
+// at the same time rarely touch the same counters. Stripes are allocated on
+// first use and merged when the histogram is read.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAXIMUM_BITS = 40;
+    private static final int BUCKETS = (MAXIMUM_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    // A stripe holds the counts of buckets, followed by the sum and the maximum:
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    // At least twice as many as processors, so threads running at once
+    // seldom share a stripe:
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 2;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        AtomicLongArray stripe = stripe();
+        stripe.incrementAndGet(bucket(nanos));
+        stripe.addAndGet(SUM, nanos);
+        long currentMax = stripe.get(MAX);
+        while (nanos > currentMax && !stripe.compareAndSet(MAX, currentMax, nanos)) {
+            currentMax = stripe.get(MAX);
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : mergeBuckets()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    public long getMean() {
+        long recorded = getCount();
+        return recorded == 0 ? 0 : merge(SUM) / recorded;
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                max = Math.max(max, stripe.get(MAX));
+            }
+        }
+        return max;
+    }
+
+    // Returns the upper bound of the bucket containing the given fraction of
+    // recorded durations, or 0 if nothing has been recorded.
+    public long getPercentile(double fraction) {
+        long[] counts = mergeBuckets();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long max = getMax();
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // The last bucket has no upper bound:
+                return i == BUCKETS - 1 ? max : Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public LatencySummary getSummary() {
+        return new LatencySummary(getCount(), getMean(),
+                getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getMax());
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    // Consecutive ids of threads are given consecutive stripes.
+    private AtomicLongArray stripe() {
+        int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS + 2));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    private long[] mergeBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                for (int j = 0; j < BUCKETS; j++) {
+                    counts[j] += stripe.get(j);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private long merge(int position) {
+        long merged = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                merged += stripe.get(position);
+            }
+        }
+        return merged;
+    }
+
+    // Values below 2 * SUB_BUCKETS have a bucket each. Larger values are
+    // shifted right until they are below 2 * SUB_BUCKETS, and the bucket is
+    // chosen by the number of shifts and the remaining bits.
+    private static int bucket(long nanos) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+        if (highestBit >= MAXIMUM_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = Math.max(0, highestBit - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long remainingBits = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((remainingBits + 1) << shift) - 1;
+    }
+}
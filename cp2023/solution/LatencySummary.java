@@ -0,0 +1,56 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+// Snapshot of a latency histogram, with all durations in nanoseconds.
+public class LatencySummary {
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+
+    public LatencySummary(long count, long mean, long p50, long p90, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                count, mean / 1e3, p50 / 1e3, p90 / 1e3, p99 / 1e3, max / 1e3);
+    }
+}
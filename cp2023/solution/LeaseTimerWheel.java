@@ -0,0 +1,106 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel ending leases when they expire. Time is divided into
+// ticks, and a lease is put into the bucket of the tick it expires in, modulo
+// the number of buckets, so scheduling takes O(1) time. Every tick, the thread
+// of the wheel goes through a single bucket and ends the leases that are due;
+// leases due in later rounds of the wheel stay in the bucket. Released leases
+// are not removed at once - they are dropped when their bucket is visited.
+//
+// The thread is started with the first lease and stops once the wheel is
+// empty, so a system without leases has no thread.
+public class LeaseTimerWheel {
+    private static final int BUCKETS = 512;
+    // Leases end at most this late (in ns):
+    private static final long TICK = 10_000_000;
+
+    private final long startTime = System.nanoTime();
+    private final SlotLeaseInstance[] buckets = new SlotLeaseInstance[BUCKETS];
+    // Everything here is guarded by the mutex:
+    private final Semaphore mutex = new Semaphore(1);
+    private long currentTick;
+    private int size;
+    private boolean running;
+
+    public void schedule(SlotLeaseInstance lease) {
+        // The first tick not earlier than the expiry:
+        long tick = Math.floorDiv(lease.getExpiryTime() - startTime + TICK - 1, TICK);
+        mutex.acquireUninterruptibly();
+        if (!running) {
+            // The wheel has been empty, so ticks passed meanwhile are skipped:
+            currentTick = Math.max(currentTick, Math.floorDiv(System.nanoTime() - startTime, TICK));
+        }
+        tick = Math.max(tick, currentTick + 1);
+        lease.setExpiryTick(tick);
+        int bucket = (int) (tick & (BUCKETS - 1));
+        lease.setNextInBucket(buckets[bucket]);
+        buckets[bucket] = lease;
+        size++;
+        if (!running) {
+            running = true;
+            Thread thread = new Thread(this::run, "lease-timer-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        mutex.release();
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private void run() {
+        while (true) {
+            mutex.acquireUninterruptibly();
+            long tick = currentTick + 1;
+            mutex.release();
+            long tickTime = startTime + tick * TICK;
+            for (long now = System.nanoTime(); now - tickTime < 0; now = System.nanoTime()) {
+                LockSupport.parkNanos(tickTime - now);
+            }
+
+            // Leases are ended without holding the mutex, since that locks their devices:
+            List<SlotLeaseInstance> expired = new ArrayList<>();
+            mutex.acquireUninterruptibly();
+            currentTick = tick;
+            int bucket = (int) (tick & (BUCKETS - 1));
+            SlotLeaseInstance previous = null;
+            SlotLeaseInstance lease = buckets[bucket];
+            while (lease != null) {
+                SlotLeaseInstance next = lease.getNextInBucket();
+                if (lease.getExpiryTick() <= tick || lease.getRemainingSlots() == 0) {
+                    if (previous == null) {
+                        buckets[bucket] = next;
+                    } else {
+                        previous.setNextInBucket(next);
+                    }
+                    lease.setNextInBucket(null);
+                    size--;
+                    expired.add(lease);
+                } else {
+                    previous = lease;
+                }
+                lease = next;
+            }
+            boolean empty = size == 0;
+            if (empty) {
+                running = false;
+            }
+            mutex.release();
+
+            for (SlotLeaseInstance expiredLease : expired) {
+                expiredLease.release();
+            }
+            if (empty) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Schedule of transfers computed by MovePlanner. Transfers of a wave can be
+// executed together, once all transfers of the previous waves are done.
+public class MovePlan {
+    private final List<List<Transfer>> waves;
+    private final int transfers;
+    // Transfers through a device which is not the destination of the component:
+    private final int bufferedTransfers;
+
+    public MovePlan(List<List<Transfer>> waves, int transfers, int bufferedTransfers) {
+        this.waves = waves;
+        this.transfers = transfers;
+        this.bufferedTransfers = bufferedTransfers;
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    public List<List<Transfer>> getWaves() {
+        return waves;
+    }
+
+    public int getTransfers() {
+        return transfers;
+    }
+
+    public int getBufferedTransfers() {
+        return bufferedTransfers;
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    // Executes the waves one after another with StorageSystem.executeAll(),
+    // each transfer of the plan replaced by the transfer made of it by the given
+    // function, which does the actual work in prepare() and perform(). Stops
+    // after the first wave with a failed transfer and returns its exceptions,
+    // as returned by executeAll(), or an empty list if all waves are done.
+    public List<TransferException> execute(
+            StorageSystem system,
+            Function<? super Transfer, ? extends ComponentTransfer> transferFactory) {
+        for (List<Transfer> wave : waves) {
+            List<ComponentTransfer> transfersOfWave = wave.stream()
+                    .map(transferFactory)
+                    .collect(Collectors.toList());
+            List<TransferException> results = system.executeAll(transfersOfWave);
+            for (TransferException result : results) {
+                if (result != null) {
+                    return results;
+                }
+            }
+        }
+        return List.of();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Computes a schedule of transfers from the current placement of components
+// to a target placement, as a MovePlan. Every wave of the plan is built from:
+//
+//  - transfers that take free places on their destination devices, those
+//    from devices wanted by other transfers first, so their places are free
+//    in the next wave,
+//  - rotations - cycles of transfers between full devices, found by a depth
+//    first search over the remaining transfers and executed together by
+//    StorageSystem.executeAll() without waiting in queues,
+//  - optionally, transfers of components that would wait for more than one
+//    wave to free places remaining after the first two steps, from which
+//    they go on to their destination later. Such buffered transfers cost
+//    one more transfer each, but shorten chains of transfers waiting for
+//    each other to two waves.
+//
+// The planner works on indices of devices and ids of components in arrays,
+// so it is linear in the number of transfers for every wave.
+public class MovePlanner {
+    private static final int NONE = -1;
+
+    // States of devices in the search for rotations:
+    private static final int UNVISITED = 0;
+    private static final int ON_STACK = 1;
+    private static final int DONE = 2;
+
+    private final DeviceState[] devices;
+    private final boolean useBuffers;
+    private final int[] freeSlots;
+
+    // Transfers not scheduled yet - the id of the component and indices of its
+    // source and destination devices, NONE if there is no such device:
+    private int[] components;
+    private int[] sources;
+    private int[] destinations;
+    private int pending;
+
+    // Data of the current wave, indexed by transfers or by devices:
+    private boolean[] selected;
+    private final int[] wanted;
+    private final int[] released;
+
+    private final List<List<Transfer>> waves = new ArrayList<>();
+    private int transfers;
+    private int bufferedTransfers;
+
+    private MovePlanner(DeviceState[] devices, int[] freeSlots, int expectedTransfers, boolean useBuffers) {
+        this.devices = devices;
+        this.useBuffers = useBuffers;
+        this.freeSlots = freeSlots;
+        this.components = new int[Math.max(expectedTransfers, 16)];
+        this.sources = new int[components.length];
+        this.destinations = new int[components.length];
+        this.wanted = new int[devices.length];
+        this.released = new int[devices.length];
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    // Components are on devices as given by the entries, encoded as in
+    // ComponentPlacement.entries(). Components missing from the target are
+    // removed, and components missing from the entries are added. Throws
+    // IllegalArgumentException if the target is not a correct placement,
+    // with the same messages as StorageSystemFactory. Leased slots are not
+    // taken into account.
+    public static MovePlan plan(
+            DeviceState[] devices,
+            IntIntHashMap deviceIndices,
+            long[] componentEntries,
+            Map<ComponentId, DeviceId> target,
+            boolean useBuffers) {
+        if (target == null) {
+            throw new IllegalArgumentException("Dependencies not defined");
+        }
+        IntIntHashMap current = new IntIntHashMap(componentEntries.length);
+        int[] freeSlots = new int[devices.length];
+        for (DeviceState device : devices) {
+            freeSlots[device.getIndex()] = device.getTotalSlots();
+        }
+        for (long entry : componentEntries) {
+            current.put((int) (entry >>> 32), (int) entry);
+            freeSlots[(int) entry]--;
+        }
+
+        MovePlanner planner = new MovePlanner(devices, freeSlots, target.size(), useBuffers);
+        int[] targetFreeSlots = new int[devices.length];
+        for (DeviceState device : devices) {
+            targetFreeSlots[device.getIndex()] = device.getTotalSlots();
+        }
+        for (Map.Entry<ComponentId, DeviceId> entry : target.entrySet()) {
+            ComponentId component = entry.getKey();
+            if (component == null) {
+                throw new IllegalArgumentException("Null component");
+            }
+            DeviceId deviceId = entry.getValue();
+            int destination = deviceId == null ? IntIntHashMap.MISSING : deviceIndices.get(deviceId.getId());
+            if (destination == IntIntHashMap.MISSING) {
+                throw new IllegalArgumentException("No device with this id in devices");
+            }
+            if (--targetFreeSlots[destination] < 0) {
+                throw new IllegalArgumentException(deviceId.toString() + " capacity exceeded");
+            }
+            int source = current.remove(component.getId());
+            if (source != destination) {
+                planner.add(component.getId(), source == IntIntHashMap.MISSING ? NONE : source, destination);
+            }
+        }
+        // Components left in the map are not in the target:
+        for (int slot = 0; slot < current.capacity(); slot++) {
+            if (current.isUsed(slot)) {
+                planner.add(current.keyAt(slot), current.valueAt(slot), NONE);
+            }
+        }
+
+        while (planner.pending > 0) {
+            planner.planWave();
+        }
+        return new MovePlan(planner.waves, planner.transfers, planner.bufferedTransfers);
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private void add(int component, int source, int destination) {
+        if (pending == components.length) {
+            components = Arrays.copyOf(components, 2 * pending);
+            sources = Arrays.copyOf(sources, 2 * pending);
+            destinations = Arrays.copyOf(destinations, 2 * pending);
+        }
+        components[pending] = component;
+        sources[pending] = source;
+        destinations[pending] = destination;
+        pending++;
+    }
+
+    private void planWave() {
+        selected = new boolean[pending];
+        Arrays.fill(wanted, 0);
+        Arrays.fill(released, 0);
+        for (int i = 0; i < pending; i++) {
+            if (destinations[i] != NONE) {
+                wanted[destinations[i]]++;
+            }
+        }
+        List<Transfer> wave = new ArrayList<>();
+
+        // Removals and transfers from wanted devices first, the rest afterwards:
+        for (int i = 0; i < pending; i++) {
+            if (destinations[i] == NONE || (sources[i] != NONE && wanted[sources[i]] > 0)) {
+                trySelect(i, wave);
+            }
+        }
+        for (int i = 0; i < pending; i++) {
+            if (!selected[i]) {
+                trySelect(i, wave);
+            }
+        }
+        selectRotations(wave);
+        int remaining = pending;
+        if (useBuffers) {
+            selectBufferedTransfers(wave);
+        }
+        if (wave.isEmpty()) {
+            // Not possible for a correct target, see selectRotations():
+            throw new IllegalStateException("No transfer can be scheduled");
+        }
+
+        // Places released in this wave are free in the next one:
+        for (int device = 0; device < devices.length; device++) {
+            freeSlots[device] += released[device];
+        }
+        int kept = 0;
+        for (int i = 0; i < pending; i++) {
+            if (i >= remaining || !selected[i]) {
+                components[kept] = components[i];
+                sources[kept] = sources[i];
+                destinations[kept] = destinations[i];
+                kept++;
+            }
+        }
+        pending = kept;
+        waves.add(wave);
+        transfers += wave.size();
+    }
+
+    // Selects the transfer if its destination has a free place in this wave.
+    private void trySelect(int i, List<Transfer> wave) {
+        int destination = destinations[i];
+        if (destination != NONE) {
+            if (freeSlots[destination] == 0) {
+                return;
+            }
+            freeSlots[destination]--;
+        }
+        if (sources[i] != NONE) {
+            released[sources[i]]++;
+        }
+        select(i, destination, wave);
+    }
+
+    private void select(int i, int destination, List<Transfer> wave) {
+        selected[i] = true;
+        wave.add(new Transfer(
+                ComponentId.of(components[i]),
+                sources[i] == NONE ? null : devices[sources[i]].getDeviceId(),
+                destination == NONE ? null : devices[destination].getDeviceId()));
+    }
+
+    // Transfers left are between devices without free places. If none has been
+    // selected yet, every device they go to has as many transfers from it as
+    // to it, because the target is correct, so there is a cycle among them.
+    // Cycles are found by a depth first search in which every transfer is an
+    // edge between devices and is followed once. A transfer of a rotation
+    // takes the place of the next one, so free places do not change.
+    private void selectRotations(List<Transfer> wave) {
+        int[] edgeStart = new int[devices.length + 1];
+        for (int i = 0; i < pending; i++) {
+            if (!selected[i] && sources[i] != NONE && destinations[i] != NONE) {
+                edgeStart[sources[i] + 1]++;
+            }
+        }
+        for (int device = 0; device < devices.length; device++) {
+            edgeStart[device + 1] += edgeStart[device];
+        }
+        int[] nextEdge = Arrays.copyOf(edgeStart, devices.length);
+        int[] edges = new int[edgeStart[devices.length]];
+        for (int i = 0; i < pending; i++) {
+            if (!selected[i] && sources[i] != NONE && destinations[i] != NONE) {
+                edges[nextEdge[sources[i]]++] = i;
+            }
+        }
+        System.arraycopy(edgeStart, 0, nextEdge, 0, devices.length);
+
+        int[] state = new int[devices.length];
+        // Devices on the path of the search, and the transfers between them:
+        int[] stack = new int[devices.length];
+        int[] stackEdges = new int[devices.length];
+        int[] stackPosition = new int[devices.length];
+        for (int start = 0; start < devices.length; start++) {
+            if (state[start] != UNVISITED || edgeStart[start] == edgeStart[start + 1]) {
+                continue;
+            }
+            int depth = 0;
+            stack[0] = start;
+            stackPosition[start] = 0;
+            state[start] = ON_STACK;
+            while (depth >= 0) {
+                int device = stack[depth];
+                if (nextEdge[device] == edgeStart[device + 1]) {
+                    state[device] = DONE;
+                    depth--;
+                    continue;
+                }
+                int edge = edges[nextEdge[device]++];
+                int next = destinations[edge];
+                if (state[next] == ON_STACK) {
+                    // A rotation from the next device back to it. Devices after
+                    // it are taken off the path and may be visited again:
+                    select(edge, next, wave);
+                    for (int position = stackPosition[next] + 1; position <= depth; position++) {
+                        select(stackEdges[position], stack[position], wave);
+                        state[stack[position]] = UNVISITED;
+                    }
+                    depth = stackPosition[next];
+                } else if (state[next] == UNVISITED && edgeStart[next] != edgeStart[next + 1]) {
+                    depth++;
+                    stack[depth] = next;
+                    stackEdges[depth] = edge;
+                    stackPosition[next] = depth;
+                    state[next] = ON_STACK;
+                }
+            }
+        }
+    }
+
+    // Components that would wait for a place for more than the next wave are
+    // moved to free places of other devices, if there are any left, as long
+    // as other transfers wait for their places. They are scheduled again from there.
+    private void selectBufferedTransfers(List<Transfer> wave) {
+        int remaining = pending;
+        int[] waiting = new int[devices.length];
+        for (int i = 0; i < remaining; i++) {
+            if (!selected[i] && destinations[i] != NONE) {
+                waiting[destinations[i]]++;
+            }
+        }
+        // Transfers to each device that get a place released in this wave:
+        int[] served = new int[devices.length];
+        int buffer = nextBuffer(0);
+        for (int i = 0; i < remaining && buffer < devices.length; i++) {
+            int source = sources[i];
+            int destination = destinations[i];
+            if (selected[i] || source == NONE || served[destination]++ < released[destination]
+                    || waiting[source] == 0) {
+                continue;
+            }
+            int device = buffer == source ? nextBuffer(buffer + 1) : buffer;
+            if (device == devices.length) {
+                continue;
+            }
+            freeSlots[device]--;
+            released[source]++;
+            select(i, device, wave);
+            add(components[i], device, destination);
+            bufferedTransfers++;
+            buffer = nextBuffer(buffer);
+        }
+    }
+
+    // Returns the first device from the given one with a free place left,
+    // or the number of devices if there is none.
+    private int nextBuffer(int from) {
+        int device = from;
+        while (device < devices.length && freeSlots[device] == 0) {
+            device++;
+        }
+        return device;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot of devices and the placement of components, so a large
+// system can be saved and created again without building maps of boxed ids.
+// The file is a sequence of little-endian ints:
+//
+//   MAGIC, VERSION, number of devices D, number of components C,
+//   D pairs (device id, number of slots),
+//   C pairs (component id, index of its device among the D devices).
+//
+// Files are written and read through memory mapping. A snapshot is written
+// to a temporary file first and then moved in place, so a crash never leaves
+// a partially written snapshot under the given path.
+public class PlacementSnapshot {
+    private static final int MAGIC = 0x43503233;
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 4;
+
+    private final DeviceId[] deviceIds;
+    private final int[] deviceTotalSlots;
+    private final int[] deviceFreeSlots;
+    private final IntIntHashMap deviceIndices;
+    private final ComponentPlacement componentPlacement;
+
+    private PlacementSnapshot(
+            DeviceId[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] deviceFreeSlots,
+            IntIntHashMap deviceIndices,
+            ComponentPlacement componentPlacement) {
+        this.deviceIds = deviceIds;
+        this.deviceTotalSlots = deviceTotalSlots;
+        this.deviceFreeSlots = deviceFreeSlots;
+        this.deviceIndices = deviceIndices;
+        this.componentPlacement = componentPlacement;
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    public DeviceId[] getDeviceIds() {
+        return deviceIds;
+    }
+
+    public int[] getDeviceTotalSlots() {
+        return deviceTotalSlots;
+    }
+
+    public int[] getDeviceFreeSlots() {
+        return deviceFreeSlots;
+    }
+
+    public IntIntHashMap getDeviceIndices() {
+        return deviceIndices;
+    }
+
+    public ComponentPlacement getComponentPlacement() {
+        return componentPlacement;
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    // Entries of components are encoded as in ComponentPlacement.entries().
+    public static void write(Path path, DeviceState[] devices, long[] componentEntries) throws IOException {
+        long size = 4L * (HEADER_INTS + 2L * devices.length + 2L * componentEntries.length);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Snapshot too large");
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            IntBuffer ints = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            ints.put(MAGIC).put(VERSION).put(devices.length).put(componentEntries.length);
+            for (DeviceState device : devices) {
+                ints.put(device.getDeviceId().getId()).put(device.getTotalSlots());
+            }
+            for (long entry : componentEntries) {
+                ints.put((int) (entry >>> 32)).put((int) entry);
+            }
+            buffer.force();
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads and validates the snapshot in a single pass over the file.
+    // Throws IllegalArgumentException if the snapshot does not describe
+    // a correct system, with the same messages as StorageSystemFactory.
+    public static PlacementSnapshot read(Path path) throws IOException {
+        IntBuffer ints;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4L * HEADER_INTS || size > Integer.MAX_VALUE || size % 4 != 0) {
+                throw new IllegalArgumentException("Malformed snapshot");
+            }
+            // The mapping stays valid after the channel is closed:
+            ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        if (ints.get() != MAGIC || ints.get() != VERSION) {
+            throw new IllegalArgumentException("Malformed snapshot");
+        }
+        int deviceCount = ints.get();
+        int componentCount = ints.get();
+        if (deviceCount < 0 || componentCount < 0
+                || ints.remaining() != 2L * deviceCount + 2L * componentCount) {
+            throw new IllegalArgumentException("Malformed snapshot");
+        }
+        if (deviceCount == 0) {
+            throw new IllegalArgumentException("No devices");
+        }
+
+        DeviceId[] deviceIds = new DeviceId[deviceCount];
+        int[] deviceTotalSlots = new int[deviceCount];
+        int[] deviceFreeSlots = new int[deviceCount];
+        IntIntHashMap deviceIndices = new IntIntHashMap(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            int deviceId = ints.get();
+            int totalSlots = ints.get();
+            if (totalSlots <= 0) {
+                throw new IllegalArgumentException("Device with non-positive capacity");
+            }
+            if (deviceIndices.put(deviceId, i) != IntIntHashMap.MISSING) {
+                throw new IllegalArgumentException("Duplicate device");
+            }
+            deviceIds[i] = DeviceId.of(deviceId);
+            deviceTotalSlots[i] = totalSlots;
+            deviceFreeSlots[i] = totalSlots;
+        }
+
+        ComponentPlacement componentPlacement = new ComponentPlacement(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            int componentId = ints.get();
+            int deviceIndex = ints.get();
+            if (deviceIndex < 0 || deviceIndex >= deviceCount) {
+                throw new IllegalArgumentException("No device with this id in devices");
+            }
+            if (!componentPlacement.put(componentId, deviceIndex)) {
+                throw new IllegalArgumentException("Duplicate component");
+            }
+            if (--deviceFreeSlots[deviceIndex] < 0) {
+                throw new IllegalArgumentException(deviceIds[deviceIndex].toString() + " capacity exceeded");
+            }
+        }
+
+        return new PlacementSnapshot(
+                deviceIds, deviceTotalSlots, deviceFreeSlots, deviceIndices, componentPlacement);
+    }
+}
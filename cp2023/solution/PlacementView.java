@@ -0,0 +1,71 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Placement of all components at a single moment, as returned by
+// StorageSystemInstance.viewPlacement(). The view does not change afterwards,
+// so it can be iterated over without any synchronization.
+public class PlacementView implements Iterable<Map.Entry<ComponentId, DeviceId>> {
+    private final DeviceState[] devices;
+    private final IntIntHashMap deviceIndices;
+    // Encoded as in ComponentPlacement.entries():
+    private final long[] entries;
+    private final int[] occupiedSlots;
+
+    public PlacementView(DeviceState[] devices, IntIntHashMap deviceIndices, long[] entries) {
+        this.devices = devices;
+        this.deviceIndices = deviceIndices;
+        this.entries = entries;
+        this.occupiedSlots = new int[devices.length];
+        for (long entry : entries) {
+            occupiedSlots[(int) entry]++;
+        }
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    public int size() {
+        return entries.length;
+    }
+
+    // Number of components on the device in this view.
+    public int occupiedSlots(DeviceId deviceId) {
+        int index = deviceIndices.get(deviceId.getId());
+        if (index == IntIntHashMap.MISSING) {
+            throw new IllegalArgumentException("No device with this id in devices");
+        }
+        return occupiedSlots[index];
+    }
+
+    @Override
+    public Iterator<Map.Entry<ComponentId, DeviceId>> iterator() {
+        return new Iterator<>() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < entries.length;
+            }
+
+            @Override
+            public Map.Entry<ComponentId, DeviceId> next() {
+                if (position == entries.length) {
+                    throw new NoSuchElementException();
+                }
+                long entry = entries[position++];
+                return new AbstractMap.SimpleImmutableEntry<>(
+                        ComponentId.of((int) (entry >>> 32)), devices[(int) entry].getDeviceId());
+            }
+        };
+    }
+}
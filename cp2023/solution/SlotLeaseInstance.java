@@ -0,0 +1,90 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+import cp2023.base.SlotLease;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Leased slots are taken from the free slots of the device when the lease is
+// created. Each of them is then either taken by a transfer or given back when
+// the lease ends, whichever comes first - both take slots from the same counter.
+public class SlotLeaseInstance implements SlotLease {
+    private final StorageSystemInstance system;
+    private final DeviceState device;
+    private final AtomicInteger remainingSlots;
+    // Time of expiry as a value of System.nanoTime():
+    private final long expiryTime;
+
+    // Data of the timer wheel, guarded by its mutex:
+    private long expiryTick;
+    private SlotLeaseInstance nextInBucket;
+
+    public SlotLeaseInstance(StorageSystemInstance system, DeviceState device, int slots, long expiryTime) {
+        this.system = system;
+        this.device = device;
+        this.remainingSlots = new AtomicInteger(slots);
+        this.expiryTime = expiryTime;
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    @Override
+    public DeviceId getDeviceId() {
+        return device.getDeviceId();
+    }
+
+    @Override
+    public int getRemainingSlots() {
+        return remainingSlots.get();
+    }
+
+    public DeviceState getDevice() {
+        return device;
+    }
+
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
+    public long getExpiryTick() {
+        return expiryTick;
+    }
+
+    public void setExpiryTick(long expiryTick) {
+        this.expiryTick = expiryTick;
+    }
+
+    public SlotLeaseInstance getNextInBucket() {
+        return nextInBucket;
+    }
+
+    public void setNextInBucket(SlotLeaseInstance nextInBucket) {
+        this.nextInBucket = nextInBucket;
+    }
+
+    // ------------------ Slots operations ------------------
+
+    // Takes one of the remaining slots for a transfer, if there is one.
+    public boolean tryTakeSlot() {
+        int current = remainingSlots.get();
+        while (current > 0) {
+            if (remainingSlots.compareAndSet(current, current - 1)) {
+                return true;
+            }
+            current = remainingSlots.get();
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        int slots = remainingSlots.getAndSet(0);
+        if (slots > 0) {
+            system.returnSlots(device, slots);
+        }
+    }
+}
@@ -9,10 +9,13 @@
  */
 package cp2023.solution;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
@@ -20,57 +23,219 @@ import cp2023.base.StorageSystem;
 
 public final class StorageSystemFactory {
 
+    // Smaller placements are validated by the calling thread alone:
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
     public static StorageSystem newSystem(
             Map<DeviceId, Integer> deviceTotalSlots,
             Map<ComponentId, DeviceId> componentPlacement) {
+        return newSystem(deviceTotalSlots, componentPlacement, ForkJoinPool.commonPool());
+    }
+
+    // Asynchronous and batch transfers are executed by the given executor.
+    public static StorageSystem newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor) {
+        return newSystem(deviceTotalSlots, componentPlacement, executor, Collections.emptyMap());
+    }
+
+    // Operations on devices are limited as described in DeviceLimits;
+    // devices without limits may be left out of the map.
+    public static StorageSystem newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor,
+            Map<DeviceId, DeviceLimits> deviceLimits) {
 
         // Handling all possible exceptions before creating new system:
 
-        if (deviceTotalSlots == null || componentPlacement == null) {
+        if (deviceTotalSlots == null || componentPlacement == null || executor == null
+                || deviceLimits == null) {
             throw new IllegalArgumentException("Dependencies not defined");
         }
 
-        // All devices and components in the system:
-        List<DeviceId> devices = new ArrayList<>(deviceTotalSlots.keySet());
-        List<ComponentId> components = new ArrayList<>(componentPlacement.keySet());
-
-        if (devices.isEmpty()) {
+        if (deviceTotalSlots.isEmpty()) {
             throw new IllegalArgumentException("No devices");
         }
 
-        Map<DeviceId, Integer> deviceFreeSlots = new ConcurrentHashMap<>();
+        // Devices are identified by their indices in the system:
+        DeviceId[] deviceIds = new DeviceId[deviceTotalSlots.size()];
+        int[] totalSlots = new int[deviceIds.length];
+        int[] deviceFreeSlots = new int[deviceIds.length];
+        IntIntHashMap deviceIndices = new IntIntHashMap(deviceIds.length);
 
-        for (DeviceId device : devices) {
-            if (device != null && deviceTotalSlots.get(device) != null) {
-                if (deviceTotalSlots.get(device) > 0) {
-                    deviceFreeSlots.put(device, deviceTotalSlots.get(device));
-                } else {
+        int index = 0;
+        for (Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()) {
+            DeviceId device = entry.getKey();
+            Integer capacity = entry.getValue();
+            if (device != null && capacity != null) {
+                if (capacity <= 0) {
                     throw new IllegalArgumentException("Device with non-positive capacity");
                 }
             } else {
                 throw new IllegalArgumentException("Device with non-defined capacity");
             }
+            // Ids of the system are canonical, see DeviceId.of():
+            deviceIds[index] = DeviceId.of(device.getId());
+            totalSlots[index] = capacity;
+            deviceFreeSlots[index] = capacity;
+            deviceIndices.put(device.getId(), index);
+            index++;
         }
 
-        for (ComponentId component : components) {
-            if (component == null) {
-                throw new IllegalArgumentException("Null component");
+        DeviceLimits[] limits = deviceLimits.isEmpty() ? null : new DeviceLimits[deviceIds.length];
+        for (Map.Entry<DeviceId, DeviceLimits> entry : deviceLimits.entrySet()) {
+            DeviceId device = entry.getKey();
+            DeviceLimits deviceLimit = entry.getValue();
+            int deviceIndex = device == null ? IntIntHashMap.MISSING : deviceIndices.get(device.getId());
+            if (deviceIndex == IntIntHashMap.MISSING) {
+                throw new IllegalArgumentException("Limits of a device not in devices");
             }
-            DeviceId deviceId = componentPlacement.get(component);
-            if (deviceId == null || !devices.contains(deviceId)) {
-                throw new IllegalArgumentException("No device with this id in devices");
+            if (deviceLimit == null) {
+                throw new IllegalArgumentException("Device with non-defined limits");
             }
-            Integer freeSlots = deviceFreeSlots.get(deviceId);
-            deviceFreeSlots.put(deviceId, freeSlots - 1);
+            if (deviceLimit.getMaxConcurrentOperations() < 0 || deviceLimit.getOperationsPerSecond() < 0
+                    || deviceLimit.getBurst() < 0) {
+                throw new IllegalArgumentException("Device with negative limits");
+            }
+            limits[deviceIndex] = deviceLimit;
+        }
+
+        // Components are validated and counted in parallel, each thread with its
+        // own counters of occupied slots, merged at the end. The placement
+        // is split into segments with separate mutexes, so threads rarely
+        // wait for each other:
+        ComponentPlacement placement = new ComponentPlacement(componentPlacement.size());
+        Stream<Map.Entry<ComponentId, DeviceId>> entries = componentPlacement.entrySet().stream();
+        if (componentPlacement.size() >= PARALLEL_THRESHOLD) {
+            entries = entries.parallel();
         }
+        PlacementCounter counter = entries.collect(
+                () -> new PlacementCounter(deviceIds.length),
+                (partialCounter, entry) -> partialCounter.add(entry, deviceIndices, placement),
+                PlacementCounter::merge);
 
-        for (DeviceId device : devices) {
-            if (deviceFreeSlots.get(device) < 0) {
-                throw new IllegalArgumentException(device.toString() + " capacity exceeded");
+        if (counter.getError() != null) {
+            throw new IllegalArgumentException(counter.getError());
+        }
+        for (int i = 0; i < deviceIds.length; i++) {
+            deviceFreeSlots[i] -= counter.getOccupiedSlots()[i];
+        }
+
+        for (int i = 0; i < deviceIds.length; i++) {
+            if (deviceFreeSlots[i] < 0) {
+                throw new IllegalArgumentException(deviceIds[i].toString() + " capacity exceeded");
             }
         }
 
-        return new StorageSystemInstance(deviceFreeSlots, componentPlacement);
+        return new StorageSystemInstance(
+                deviceIds, totalSlots, deviceFreeSlots, deviceIndices, placement, executor, null, limits);
     }
 
+    // Creates a system from a file written by StorageSystemInstance.writeSnapshot().
+    public static StorageSystem newSystemFromSnapshot(Path snapshot) throws IOException {
+        return newSystemFromSnapshot(snapshot, ForkJoinPool.commonPool());
+    }
+
+    public static StorageSystem newSystemFromSnapshot(Path snapshot, Executor executor) throws IOException {
+        if (snapshot == null || executor == null) {
+            throw new IllegalArgumentException("Dependencies not defined");
+        }
+
+        return newSystem(PlacementSnapshot.read(snapshot), executor, null);
+    }
+
+    // Creates a system from a snapshot with transfers from the journal replayed
+    // on top of it, and records further transfers in the journal. Transfers
+    // which had not been committed are listed by TransferJournal.getUnfinishedTransfers().
+    public static StorageSystem newSystemFromSnapshot(
+            Path snapshot,
+            Path journal,
+            Executor executor) throws IOException {
+        if (snapshot == null || journal == null || executor == null) {
+            throw new IllegalArgumentException("Dependencies not defined");
+        }
+
+        PlacementSnapshot placement = PlacementSnapshot.read(snapshot);
+        return newSystem(placement, executor, TransferJournal.open(journal, placement));
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private static StorageSystem newSystem(
+            PlacementSnapshot placement,
+            Executor executor,
+            TransferJournal journal) {
+        return new StorageSystemInstance(
+                placement.getDeviceIds(),
+                placement.getDeviceTotalSlots(),
+                placement.getDeviceFreeSlots(),
+                placement.getDeviceIndices(),
+                placement.getComponentPlacement(),
+                executor,
+                journal,
+                null);
+    }
+
+
+    // Occupied slots of every device counted by a single thread, and the error
+    // of the lowest component id it has found, a null component being the
+    // lowest. Counters are merged in the same way, so the error reported is
+    // the same however the components are split between threads. Errors are
+    // not thrown by the threads, so the message reaches the caller unchanged:
+    private static final class PlacementCounter {
+        private static final long NULL_COMPONENT = Long.MIN_VALUE;
+
+        private final int[] occupiedSlots;
+        private String error;
+        private long errorComponent;
+
+        public PlacementCounter(int devices) {
+            this.occupiedSlots = new int[devices];
+        }
+
+        public int[] getOccupiedSlots() {
+            return occupiedSlots;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void add(
+                Map.Entry<ComponentId, DeviceId> entry,
+                IntIntHashMap deviceIndices,
+                ComponentPlacement placement) {
+            ComponentId component = entry.getKey();
+            if (component == null) {
+                setError("Null component", NULL_COMPONENT);
+                return;
+            }
+            DeviceId deviceId = entry.getValue();
+            int deviceIndex = deviceId == null ? IntIntHashMap.MISSING : deviceIndices.get(deviceId.getId());
+            if (deviceIndex == IntIntHashMap.MISSING) {
+                setError("No device with this id in devices", component.getId());
+                return;
+            }
+            occupiedSlots[deviceIndex]++;
+            placement.put(component.getId(), deviceIndex);
+        }
+
+        public void merge(PlacementCounter other) {
+            if (other.error != null) {
+                setError(other.error, other.errorComponent);
+            }
+            for (int i = 0; i < occupiedSlots.length; i++) {
+                occupiedSlots[i] += other.occupiedSlots[i];
+            }
+        }
+
+        private void setError(String error, long component) {
+            if (this.error == null || component < errorComponent) {
+                this.error = error;
+                this.errorComponent = component;
+            }
+        }
+    }
 }
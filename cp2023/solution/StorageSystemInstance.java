@@ -7,314 +7,1018 @@ package cp2023.solution;
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
+import cp2023.base.LeasedTransfer;
+import cp2023.base.PrioritizedTransfer;
+import cp2023.base.SlotLease;
 import cp2023.base.StorageSystem;
 import cp2023.exceptions.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class StorageSystemInstance implements StorageSystem {
 
-    // Collection created mainly to handle exceptions:
-    private final List<ComponentId> occupied = new LinkedList<>();
+    // Waiting for this long counts as much as one level of priority (in ns):
+    private static final long AGING_STEP = 1_000_000;
 
-    // System status data:
-    private final Map<DeviceId, Integer> deviceFreeSlots;
-    private final Map<ComponentId, DeviceId> componentPlacement;
+    // System status data. Every device has its own free slots counter, queues
+    // and mutex, so transfers between unrelated devices do not contend.
+    // Devices are identified by their indices, found by the ids of devices.
+    // The placement also marks components claimed by transfers in progress:
+    private final DeviceState[] devices;
+    private final IntIntHashMap deviceIndices;
+    private final ComponentPlacement componentPlacement;
 
-    // Additional structures and variables:
+    // Graph of transfers waiting for each other, used to find cycles:
+    private final WaitForGraph waitForGraph;
 
-    // If a transfer is ready to go, it is here:
-    private final Queue<WrappedTransfer> readyTransfers = new LinkedList<>();
+    // Executes prepare() and perform() of asynchronous and batch transfers:
+    private final Executor executor;
 
-    // If a transfer is waiting for a place to be released, it is here:
-    private final Queue<WrappedTransfer> waitingTransfers = new LinkedList<>();
+    private final StorageSystemMetrics metrics;
 
-    // Mutex:
-    private final Semaphore mutex = new Semaphore(1);
+    // Records transfers for recovery, or null if the system is not journaled:
+    private final TransferJournal journal;
 
+    // Ends leases of slots when they expire:
+    private final LeaseTimerWheel leaseTimerWheel = new LeaseTimerWheel();
 
+    // A thread executes its transfers one after another, so each of them is
+    // wrapped in the same object, kept here between transfers. It is taken
+    // out meanwhile, in case prepare() or perform() executes a transfer too:
+    private final ThreadLocal<WrappedTransfer> spareTransfers = new ThreadLocal<>();
+
+
+    // Device with index i has id deviceIds[i], deviceTotalSlots[i] slots and
+    // deviceFreeSlots[i] free slots. The map of indices is not modified afterwards.
+    // Limits of the device are deviceLimits[i]; the array, its elements and
+    // the journal may be null.
     public StorageSystemInstance(
-            Map<DeviceId, Integer> deviceFreeSlots,
-            Map<ComponentId, DeviceId> componentPlacement) {
-        this.deviceFreeSlots = deviceFreeSlots;
+            DeviceId[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] deviceFreeSlots,
+            IntIntHashMap deviceIndices,
+            ComponentPlacement componentPlacement,
+            Executor executor,
+            TransferJournal journal,
+            DeviceLimits[] deviceLimits) {
+        this.executor = executor;
+        this.journal = journal;
+        this.devices = new DeviceState[deviceIds.length];
+        for (int i = 0; i < deviceIds.length; i++) {
+            DeviceLimits limits = deviceLimits == null ? null : deviceLimits[i];
+            devices[i] = new DeviceState(deviceIds[i], i, deviceTotalSlots[i], deviceFreeSlots[i],
+                    limits == null ? null : new DeviceThrottle(limits));
+        }
+        this.deviceIndices = deviceIndices;
         this.componentPlacement = componentPlacement;
+        this.waitForGraph = new WaitForGraph(Arrays.asList(devices));
+        this.metrics = new StorageSystemMetrics(devices);
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    public StorageSystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TransferJournal getJournal() {
+        return journal;
     }
 
-    // ----------------------------- Public method ------------------------------
+    // Writes devices and the placement of components to a snapshot file, from
+    // which StorageSystemFactory can create a system. Components are saved
+    // with the devices they are on before their transfers in progress, so the
+    // snapshot is consistent only if no transfers are executed meanwhile.
+    public void writeSnapshot(Path path) throws IOException {
+        PlacementSnapshot.write(path, devices, componentPlacement.entries());
+    }
+
+    // Writes a snapshot and clears the journal, whose transfers are in the
+    // snapshot from now on. As with writeSnapshot(), no transfers can be
+    // executed meanwhile.
+    public void checkpoint(Path path) throws IOException {
+        writeSnapshot(path);
+        if (journal != null) {
+            journal.clear();
+        }
+    }
+
+    // Queries below take no locks, so they can be made at any rate without
+    // slowing transfers down.
+
+    // Returns the device the component is on, or null if it is not in the
+    // system. A component being transferred is on its source device until
+    // the transfer has been performed.
+    public DeviceId locate(ComponentId componentId) {
+        int index = componentPlacement.get(componentId.getId());
+        return index == ComponentPlacement.MISSING ? null : devices[index].getDeviceId();
+    }
 
+    // Returns the number of places on the device which are neither occupied
+    // nor reserved by transfers or leases at the moment.
+    public int freeSlots(DeviceId deviceId) {
+        DeviceState device = device(deviceId);
+        if (device == null) {
+            throw new IllegalArgumentException("No device with this id in devices");
+        }
+        return device.getFreeSlots();
+    }
+
+    // Returns the placement of all components at the moment of the call,
+    // with components being transferred on their source devices.
+    public PlacementView viewPlacement() {
+        return new PlacementView(devices, deviceIndices, componentPlacement.entries());
+    }
+
+    // Computes transfers from the current placement of components to the
+    // target placement, grouped into waves, see MovePlanner. As with
+    // writeSnapshot(), the plan is correct only if no transfers are executed
+    // between computing and executing it, except for the transfers of the plan.
+    public MovePlan planMoves(Map<ComponentId, DeviceId> target, boolean useBuffers) {
+        return MovePlanner.plan(devices, deviceIndices, componentPlacement.entries(), target, useBuffers);
+    }
+
+    // If the thread is interrupted while the transfer is waiting for a place,
+    // the transfer is withdrawn and TransferInterrupted is thrown. Waiting for
+    // the limits of devices, once the transfer is admitted, is not interrupted.
     public void execute(ComponentTransfer transfer) throws TransferException {
 
-        ComponentId componentId = transfer.getComponentId();
-        DeviceId sourceDeviceId = transfer.getSourceDeviceId();
-        DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
+        handleExceptions(transfer);
+        WrappedTransfer wrappedTransfer = wrap(transfer, null);
 
-        try {
-            mutex.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("panic: unexpected thread interruption");
+        // Phase 1 - reserving a place on the destination device:
+        if (!admit(wrappedTransfer, true)) {
+            awaitAdmission(wrappedTransfer, false, 0);
+        }
+        executeAdmitted(wrappedTransfer);
+    }
+
+    // Executes the transfer only if it can be admitted at once: there is a free
+    // place on its destination device, a place released by a leaving transfer,
+    // or the transfer closes a cycle. Otherwise it is not queued, its component
+    // is left as it is, and false is returned. An admitted transfer may still
+    // wait for its predecessor and for the limits of its devices.
+    public boolean tryExecute(ComponentTransfer transfer) throws TransferException {
+        return execute(transfer, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // As execute(), but if the transfer has not been admitted within the given
+    // time, it is withdrawn, as if it has been interrupted, and false is
+    // returned. A non-positive timeout is the same as tryExecute().
+    public boolean execute(ComponentTransfer transfer, long timeout, TimeUnit unit)
+            throws TransferException {
+        if (unit == null) {
+            throw new IllegalArgumentException("No unit of a timeout");
         }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
 
         handleExceptions(transfer);
-        WrappedTransfer wrappedTransfer = new WrappedTransfer(transfer);
-        occupied.add(componentId);
+        WrappedTransfer wrappedTransfer = wrap(transfer, null);
 
-        // Delete component:
-        if (destinationDeviceId == null) {
-            transfer.prepare();
-            WrappedTransfer transferToWakeUp = popFromQueueOfThisDevice(sourceDeviceId);
-            if (transferToWakeUp != null) {
-                wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
-                wrappedTransfer.wakeTheOtherUp();
+        // Phase 1 - reserving a place on the destination device, if there is one in time:
+        if (!admit(wrappedTransfer, timeout > 0)) {
+            if (timeout <= 0) {
+                componentPlacement.unclaim(transfer.getComponentId().getId());
+                spareTransfers.set(wrappedTransfer);
+                return false;
             }
-            Integer sourceFreeSlots = deviceFreeSlots.get(sourceDeviceId);
-            deviceFreeSlots.put(sourceDeviceId, sourceFreeSlots + 1);
-            componentPlacement.remove(componentId);
-            occupied.remove(componentId);
-            if (wrappedTransfer.getTransferToWakeUp() != null) {
-                wrappedTransfer.wakeTheOtherUp();
+            if (!awaitAdmission(wrappedTransfer, true, deadline)) {
+                return false;
             }
-            transfer.perform();
-            mutex.release();
-        } else {
-            // Add or move component:
-            if (deviceFreeSlots.get(destinationDeviceId) > 0) {
-                // There are empty places on a destination device:
-                transfer.prepare();
-                if (sourceDeviceId != null) {
-                    WrappedTransfer transferToWakeUp = popFromQueueOfThisDevice(sourceDeviceId);
-                    if (transferToWakeUp != null) {
-                        wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
-                        wrappedTransfer.wakeTheOtherUp();
-                    }
-                    Integer sourceFreeSlots = deviceFreeSlots.get(sourceDeviceId);
-                    deviceFreeSlots.put(sourceDeviceId, sourceFreeSlots + 1);
-                }
-                Integer destinationFreeSlots = deviceFreeSlots.get(destinationDeviceId);
-                deviceFreeSlots.put(destinationDeviceId, destinationFreeSlots - 1);
-                componentPlacement.put(componentId, destinationDeviceId);
-                occupied.remove(componentId);
-                if (wrappedTransfer.getTransferToWakeUp() != null) {
-                    wrappedTransfer.wakeTheOtherUp();
-                }
-                transfer.perform();
-                mutex.release();
-            } else {
-                // There is no empty place on a destination device:
-                // Looping over all transfers that are waiting on their semaphores
-                // to look for an optional empty place:
-                boolean foundQuittingComponentImmediately = false;
-                for (WrappedTransfer wrapper : readyTransfers) {
-                    if (wrapper.getTransfer().getSourceDeviceId() == destinationDeviceId &&
-                            wrapper.getTransferToWakeUp() == null &&
-                            !wrapper.equals(wrappedTransfer)) {
-                        // Found quitting transfer without any transfer to replace it:
-                        foundQuittingComponentImmediately = true;
-                        wrapper.setTransferToWakeUp(wrappedTransfer);
-                        break;
-                    }
-                }
-                // After forcefully finding a place for a transfer it has to check
-                // if any other transfer is waiting for a place on its device:
-                if (foundQuittingComponentImmediately) {
-                    transfer.prepare();
-                    readyTransfers.add(wrappedTransfer);
-                    if (sourceDeviceId != null) {
-                        WrappedTransfer transferToWakeUp = popFromQueueOfThisDevice(sourceDeviceId);
-                        if (transferToWakeUp != null) {
-                            wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
-                            wrappedTransfer.wakeTheOtherUp();
-                        }
-                    }
-                    mutex.release();
-                    wrappedTransfer.goToSleep();
-                }
-                // No empty places - transfer is added to the queue of all waiting transfers
-                else {
-                    waitingTransfers.add(wrappedTransfer);
-                    // Checking for cycle:
-                    Set<DeviceId> visited = new HashSet<>();
-                    visited.add(wrappedTransfer.getTransfer().getDestinationDeviceId());
-                    ArrayList<WrappedTransfer> cycle = cycleDetector(
-                            wrappedTransfer.getTransfer().getSourceDeviceId(), visited);
-                    if (cycle != null) {
-                        transfer.prepare();
-                        // There is a cycle; the only transfer that is not in the cycle array
-                        // is the one that has closed the cycle, so there is no need to wake it up.
-                        // Waking up every other transfer from the cycle:
-                        for (WrappedTransfer wrapper : cycle) {
-                            if (!wrapper.equals(wrappedTransfer)) {
-                                wrapper.getSemaphore().release();
-                            }
-                        }
-                        readyTransfers.add(wrappedTransfer);
-                        if (sourceDeviceId != null) {
-                            WrappedTransfer transferToWakeUp = popFromQueueOfThisDevice(sourceDeviceId);
-                            if (transferToWakeUp != null) {
-                                wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
-                                wrappedTransfer.wakeTheOtherUp();
-                            }
-                        }
-                        // Waiting to be moved:
-                        mutex.release();
-                        wrappedTransfer.goToSleep();
-                    }
-                    else {
-                        // There is no cycle, so the transfer goes to sleep:
-                        mutex.release();
-                        wrappedTransfer.goToSleep();
-                        // If the transfer is waked up, it means that some other transfer
-                        // has added it as a transfer to wake up, which means our transfer
-                        // has to do the same with another from the queue:
-                        transfer.prepare();
-                        try {
-                            mutex.acquire();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException("panic: unexpected thread interruption");
-                        }
-                        readyTransfers.add(wrappedTransfer);
-                        if (sourceDeviceId != null) {
-                            WrappedTransfer transferToWakeUp = popFromQueueOfThisDevice(sourceDeviceId);
-                            if (transferToWakeUp != null) {
-                                wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
-                                wrappedTransfer.wakeTheOtherUp();
-                            }
-                        }
-                        // Waiting to be moved:
-                        mutex.release();
-                        wrappedTransfer.goToSleep();
-                    }
-                }
+        }
+        executeAdmitted(wrappedTransfer);
+        return true;
+    }
 
-                // Here transfer is being waked up for the last time:
-                try {
-                    mutex.acquire();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException("panic: unexpected thread interruption");
-                }
+    // Starts the transfer and returns a future completed once it has been
+    // performed, or completed exceptionally if the transfer is invalid.
+    // Cancelling the future withdraws the transfer if it is still waiting.
+    // prepare() and perform() are called by the executor of the system, and
+    // a waiting transfer is only a continuation - it does not hold any thread.
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) {
+        try {
+            handleExceptions(transfer);
+        } catch (TransferException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        WrappedTransfer wrappedTransfer = wrap(transfer, executor);
+        dispatch(wrappedTransfer, admit(wrappedTransfer, true));
+        return wrappedTransfer.getCompletion();
+    }
 
-                if (wrappedTransfer.getTransferToWakeUp() != null) {
-                    wrappedTransfer.wakeTheOtherUp();
-                }
-                readyTransfers.remove(wrappedTransfer);
+    // Executes a batch of transfers and returns the exception thrown by each of
+    // them, or null if it has been executed, in the order of the collection.
+    // A transfer whose prepare() or perform() has thrown, or whose record could
+    // not be journaled, is reported as TransferFailed, with what has been
+    // thrown as its cause; the other transfers of the batch are executed
+    // anyway, and the method returns once all of them have ended.
+    // The batch is validated in one pass, places for all valid transfers are
+    // reserved under a single acquisition of the mutexes of all their devices,
+    // so swaps and rotations within the batch are found at once, and transfers
+    // are then executed asynchronously.
+    public List<TransferException> executeAll(Collection<? extends ComponentTransfer> transfers) {
+        List<TransferException> results = new ArrayList<>(transfers.size());
+        List<WrappedTransfer> wrappedTransfers = new ArrayList<>(transfers.size());
+        SortedSet<DeviceState> batchDevices = new TreeSet<>();
+        for (ComponentTransfer transfer : transfers) {
+            try {
+                handleExceptions(transfer);
+            } catch (TransferException e) {
+                results.add(e);
+                continue;
+            }
+            results.add(null);
+            WrappedTransfer wrappedTransfer = wrap(transfer, executor);
+            wrappedTransfers.add(wrappedTransfer);
+            if (wrappedTransfer.getSource() != null) {
+                batchDevices.add(wrappedTransfer.getSource());
+            }
+            if (wrappedTransfer.getDestination() != null) {
+                batchDevices.add(wrappedTransfer.getDestination());
+            }
+        }
 
-                if (sourceDeviceId != null) {
-                    Integer sourceFreeSlots = deviceFreeSlots.get(sourceDeviceId);
-                    deviceFreeSlots.put(sourceDeviceId, sourceFreeSlots + 1);
+        // Phase 1 for the whole batch - devices are locked in the order of their ids:
+        boolean[] admitted = new boolean[wrappedTransfers.size()];
+        for (DeviceState device : batchDevices) {
+            device.lock();
+        }
+        for (int i = 0; i < wrappedTransfers.size(); i++) {
+            admitted[i] = reservePlace(wrappedTransfers.get(i), true);
+        }
+        for (DeviceState device : batchDevices) {
+            device.unlock();
+        }
+
+        for (int i = 0; i < wrappedTransfers.size(); i++) {
+            if (admitted[i]) {
+                passBaton(wrappedTransfers.get(i).takeAdmittedTransfer());
+                wakeUpCycle(wrappedTransfers.get(i));
+            }
+            dispatch(wrappedTransfers.get(i), admitted[i]);
+        }
+        // Valid transfers are those with null results, in the same order:
+        int next = 0;
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                WrappedTransfer wrappedTransfer = wrappedTransfers.get(next++);
+                Throwable failure = wrappedTransfer.getCompletion().handle((result, e) -> e).join();
+                if (failure != null) {
+                    results.set(i, new TransferFailed(wrappedTransfer.getTransfer().getComponentId(), failure));
                 }
-                Integer destinationFreeSlots = deviceFreeSlots.get(destinationDeviceId);
-                deviceFreeSlots.put(destinationDeviceId, destinationFreeSlots - 1);
-                componentPlacement.put(componentId, destinationDeviceId);
-                occupied.remove(componentId);
-                transfer.perform();
+            }
+        }
+        return results;
+    }
 
-                mutex.release();
+
+    // Leased slots are taken from free slots at once. The lease ends after
+    // the given time, or earlier if it is released.
+    public SlotLease leaseSlots(DeviceId deviceId, int slots, long duration, TimeUnit unit)
+            throws TransferException {
+        if (slots <= 0 || duration <= 0 || unit == null) {
+            throw new IllegalArgumentException("Non-positive number of slots or duration of a lease");
+        }
+        DeviceState device = device(deviceId);
+        if (device == null) {
+            throw new DeviceDoesNotExist(deviceId);
+        }
+        if (!device.tryReserveSlots(slots)) {
+            return null;
+        }
+        SlotLeaseInstance lease = new SlotLeaseInstance(this, device, slots, System.nanoTime() + unit.toNanos(duration));
+        leaseTimerWheel.schedule(lease);
+        return lease;
+    }
+
+
+    // Gives slots of an ended lease back to the device. Transfers waiting for
+    // a place on the device take them first, as if they were released by
+    // transfers leaving the device.
+    void returnSlots(DeviceState device, int slots) {
+        List<WrappedTransfer> admitted = new ArrayList<>();
+        device.lock();
+        if (!device.getWaitingTransfers().isEmpty()) {
+            waitForGraph.lock();
+            while (slots > 0 && !device.getWaitingTransfers().isEmpty()) {
+                WrappedTransfer transferToWakeUp = device.getWaitingTransfers().poll();
+                removeWaitForEdge(transferToWakeUp);
+                admitted.add(transferToWakeUp);
+                slots--;
             }
+            waitForGraph.unlock();
+        }
+        for (; slots > 0; slots--) {
+            device.releaseSlot();
+        }
+        device.unlock();
+        for (WrappedTransfer wrappedTransfer : admitted) {
+            passBaton(wrappedTransfer);
         }
     }
 
+    // Removes a transfer that is still waiting for a place from the queue of
+    // its destination device and from the wait-for graph, and drops its claim
+    // on the component. Returns false if the transfer has already been admitted.
+    boolean withdraw(WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        DeviceState destination = wrappedTransfer.getDestination();
+        if (destination == null) {
+            return false;
+        }
+        lockInOrder(source, destination);
+        waitForGraph.lock();
+        boolean withdrawn = destination.getWaitingTransfers().remove(wrappedTransfer);
+        if (withdrawn) {
+            removeWaitForEdge(wrappedTransfer);
+        }
+        waitForGraph.unlock();
+        unlockInOrder(source, destination);
+        if (withdrawn) {
+            metrics.withdrawn();
+            componentPlacement.unclaim(wrappedTransfer.getTransfer().getComponentId().getId());
+        }
+        return withdrawn;
+    }
+
 
     // ----------------------------- Private methods -----------------------------
 
+    // Waits until some other transfer gives its place to our transfer. Our
+    // source place is handed over before we are woken up. If the thread is
+    // interrupted, or the deadline passes, first, the transfer is withdrawn:
+    // TransferInterrupted is thrown or false is returned, respectively.
+    private boolean awaitAdmission(WrappedTransfer wrappedTransfer, boolean timed, long deadline)
+            throws TransferInterrupted {
+        if (wrappedTransfer.goToSleepInterruptibly(timed, deadline)) {
+            return true;
+        }
+        boolean interrupted = Thread.interrupted();
+        if (withdraw(wrappedTransfer)) {
+            ComponentId componentId = wrappedTransfer.getTransfer().getComponentId();
+            spareTransfers.set(wrappedTransfer);
+            if (interrupted) {
+                throw new TransferInterrupted(componentId);
+            }
+            return false;
+        }
+        // The transfer has been admitted in the meantime, so it has to be
+        // executed; the interruption is left for the caller:
+        wrappedTransfer.goToSleep();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    // Phases 2 and 3 of a transfer executed by the calling thread.
+    private void executeAdmitted(WrappedTransfer wrappedTransfer) {
+        ComponentTransfer transfer = wrappedTransfer.getTransfer();
+        metrics.admitted(wrappedTransfer);
+        awaitJournal(wrappedTransfer);
+
+        // Phase 2 - preparing the transfer:
+        awaitThrottles(wrappedTransfer);
+        try {
+            transfer.prepare();
+        } finally {
+            endThrottled(wrappedTransfer);
+        }
+        metrics.prepared(wrappedTransfer);
+        releaseSourcePlace(wrappedTransfer);
+
+        // Phase 3 - performing the transfer:
+        if (wrappedTransfer.isWaitingForPredecessor()) {
+            // The place on the destination device is not empty
+            // until the previous owner of the place is prepared:
+            wrappedTransfer.goToSleep();
+        }
+        metrics.predecessorPrepared(wrappedTransfer);
+        awaitThrottles(wrappedTransfer);
+        try {
+            transfer.perform();
+        } finally {
+            endThrottled(wrappedTransfer);
+        }
+        metrics.performed(wrappedTransfer);
+        finish(wrappedTransfer);
+        spareTransfers.set(wrappedTransfer);
+    }
+
+    // Claims the component for the transfer; the claim is dropped if the transfer is invalid.
     private void handleExceptions(ComponentTransfer transfer) throws TransferException {
         ComponentId componentId = transfer.getComponentId();
-        DeviceId sourceDeviceId = transfer.getSourceDeviceId();
-        DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
+        int currentDeviceIndex = componentPlacement.claim(componentId.getId());
         // Real-time exception:
-        if (occupied.contains(componentId)) {
+        if (currentDeviceIndex == ComponentPlacement.CLAIMED) {
+            metrics.rejectedBeingOperatedOn();
             throw new ComponentIsBeingOperatedOn(componentId);
         }
+        try {
+            validateTransfer(transfer, currentDeviceIndex);
+        } catch (TransferException e) {
+            componentPlacement.unclaim(componentId.getId());
+            metrics.rejectedInvalid();
+            throw e;
+        }
+    }
+
+    // The placement of a claimed component cannot change,
+    // so the device found when it was claimed is still valid.
+    private void validateTransfer(ComponentTransfer transfer, int currentDeviceIndex) throws TransferException {
+        ComponentId componentId = transfer.getComponentId();
+        DeviceId sourceDeviceId = transfer.getSourceDeviceId();
+        DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
         // Parameters-connected exceptions:
         if (sourceDeviceId == null && destinationDeviceId == null) {
             throw new IllegalTransferType(componentId);
         }
-        if (sourceDeviceId != null && !deviceFreeSlots.containsKey(sourceDeviceId)) {
+        DeviceState source = device(sourceDeviceId);
+        if (sourceDeviceId != null && source == null) {
             throw new DeviceDoesNotExist(sourceDeviceId);
         }
-        if (destinationDeviceId != null && !deviceFreeSlots.containsKey(destinationDeviceId)) {
+        if (destinationDeviceId != null && device(destinationDeviceId) == null) {
             throw new DeviceDoesNotExist(destinationDeviceId);
         }
         if (sourceDeviceId != null && sourceDeviceId.equals(destinationDeviceId)) {
             throw new ComponentDoesNotNeedTransfer(componentId, sourceDeviceId);
         }
-        if (sourceDeviceId != null && invalidComponent(componentId, sourceDeviceId)) {
+        if (source != null && source.getIndex() != currentDeviceIndex) {
             throw new ComponentDoesNotExist(componentId, sourceDeviceId);
         }
-        if (sourceDeviceId == null) {
+        if (source == null && currentDeviceIndex != ComponentPlacement.MISSING) {
             // (destinationDeviceId != null) is always true here
-            for (ComponentId component : componentPlacement.keySet()) {
-                if (componentId.equals(component)) {
-                    throw new ComponentAlreadyExists(component, componentPlacement.get(component));
-                }
+            throw new ComponentAlreadyExists(componentId, devices[currentDeviceIndex].getDeviceId());
+        }
+    }
+
+    // Returns null if there is no such device.
+    private DeviceState device(DeviceId deviceId) {
+        if (deviceId == null) {
+            return null;
+        }
+        int index = deviceIndices.get(deviceId.getId());
+        return index == IntIntHashMap.MISSING ? null : devices[index];
+    }
+
+    // A transfer executed by the calling thread reuses the spare transfer of
+    // the thread, if it has one, so executing it allocates nothing.
+    private WrappedTransfer wrap(ComponentTransfer transfer, Executor executor) {
+        DeviceState source = device(transfer.getSourceDeviceId());
+        DeviceState destination = device(transfer.getDestinationDeviceId());
+        WrappedTransfer wrappedTransfer = executor == null ? spareTransfers.get() : null;
+        if (wrappedTransfer != null) {
+            spareTransfers.set(null);
+            wrappedTransfer.reuse(transfer, source, destination);
+        } else {
+            wrappedTransfer = new WrappedTransfer(transfer, source, destination, executor);
+        }
+        if (executor != null) {
+            wrappedTransfer.setCompletion(new TransferFuture(this, wrappedTransfer));
+        }
+        metrics.startTiming(wrappedTransfer);
+        return wrappedTransfer;
+    }
+
+    // Reserves a place on the destination device, if there is one. Otherwise
+    // the transfer is added to the queue of the device, if it may wait, unless
+    // it closes a cycle. Returns true if the transfer has been admitted.
+    // Both devices of the transfer have to be locked.
+    private boolean reservePlace(WrappedTransfer wrappedTransfer, boolean mayWait) {
+        DeviceState source = wrappedTransfer.getSource();
+        DeviceState destination = wrappedTransfer.getDestination();
+        boolean admitted = true;
+        if (destination == null || takeLeasedSlot(wrappedTransfer) || destination.tryReserveSlot()) {
+            // There are empty places on a destination device, one of them is taken:
+            metrics.admittedAtOnce();
+        } else {
+            // There is no empty place on a destination device.
+            // Looking for a transfer that is leaving this device
+            // and whose place has not been claimed yet:
+            WrappedTransfer leaving = destination.getReadyTransfers().poll();
+            if (leaving != null) {
+                leaving.setTransferToWakeUp(wrappedTransfer);
+                wrappedTransfer.setWaitingForPredecessor(true);
+                metrics.admittedByLeavingTransfer();
+            } else {
+                // No empty places - transfer is added to the queue of the device,
+                // unless it closes a cycle:
+                admitted = waitOrCloseCycle(wrappedTransfer, source, destination, mayWait);
             }
         }
+        if (admitted && !wrappedTransfer.isSourceHandedOver()) {
+            handOverSourcePlace(wrappedTransfer, source);
+        }
+        return admitted;
+    }
+
+    // Phase 1 of a single transfer. An empty place on the destination device
+    // is taken without locking it, and then only the source device is locked.
+    // Otherwise both devices are locked. Returns true if the transfer has been admitted.
+    private boolean admit(WrappedTransfer wrappedTransfer, boolean mayWait) {
+        DeviceState source = wrappedTransfer.getSource();
+        DeviceState destination = wrappedTransfer.getDestination();
+        if (destination == null || takeLeasedSlot(wrappedTransfer) || destination.tryReserveSlot()) {
+            metrics.admittedAtOnce();
+            handOverAfterAdmission(wrappedTransfer);
+            return true;
+        }
+        lockInOrder(source, destination);
+        long lockTime = metrics.startTiming();
+        boolean admitted = reservePlace(wrappedTransfer, mayWait);
+        metrics.deviceLockHold(lockTime);
+        unlockInOrder(source, destination);
+        // A transfer left in the queue may already be admitted by another thread:
+        if (admitted) {
+            passBaton(wrappedTransfer.takeAdmittedTransfer());
+            wakeUpCycle(wrappedTransfer);
+        }
+        return admitted;
+    }
+
+    // Takes a slot of the lease of the transfer, if it has one for its destination device.
+    private boolean takeLeasedSlot(WrappedTransfer wrappedTransfer) {
+        if (!(wrappedTransfer.getTransfer() instanceof LeasedTransfer)) {
+            return false;
+        }
+        SlotLease lease = ((LeasedTransfer) wrappedTransfer.getTransfer()).getLease();
+        // Devices of other systems are different objects:
+        return lease instanceof SlotLeaseInstance
+                && ((SlotLeaseInstance) lease).getDevice() == wrappedTransfer.getDestination()
+                && ((SlotLeaseInstance) lease).tryTakeSlot();
+    }
+
+    // Gives away the place on the source device of an admitted transfer,
+    // unless it has already been done. Locks the source device.
+    private void handOverAfterAdmission(WrappedTransfer wrappedTransfer) {
+        if (wrappedTransfer.isSourceHandedOver()) {
+            return;
+        }
+        lockAndHandOverSourcePlace(wrappedTransfer);
+        passBaton(wrappedTransfer.takeAdmittedTransfer());
+    }
+
+    private void lockAndHandOverSourcePlace(WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        if (source != null) {
+            source.lock();
+        }
+        handOverSourcePlace(wrappedTransfer, source);
+        if (source != null) {
+            source.unlock();
+        }
+    }
+
+    // Completes the admission of a transfer taken from the queue of a device
+    // and only then wakes it up, so the woken thread goes on to prepare() at
+    // once, without locking anything. The handover of its source place may
+    // admit another waiting transfer, which is admitted in the same way, so
+    // the whole chain is admitted by the thread that started it, one device
+    // locked at a time. Transfers are woken up once the chain is admitted,
+    // as the first of them may wake up its successor as soon as it has been
+    // prepared. Does nothing for null.
+    private void passBaton(WrappedTransfer admitted) {
+        for (WrappedTransfer current = admitted; current != null; current = current.getAdmittedTransfer()) {
+            lockAndHandOverSourcePlace(current);
+            metrics.batonPassed();
+        }
+        while (admitted != null) {
+            WrappedTransfer next = admitted.takeAdmittedTransfer();
+            admitted.wakeUp();
+            admitted = next;
+        }
+    }
+
+    // The place on the source device of a prepared transfer is released, either
+    // to the successor or back to the pool of free places. Locks the source
+    // device; the successor is woken up once it is unlocked.
+    private void releaseSourcePlace(WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        if (source != null) {
+            source.lock();
+            WrappedTransfer successor = wrappedTransfer.getTransferToWakeUp();
+            if (successor == null) {
+                source.getReadyTransfers().remove(wrappedTransfer);
+                source.releaseSlot();
+            }
+            source.unlock();
+            if (successor != null) {
+                successor.wakeUp();
+            }
+        }
+    }
+
+    private void finish(WrappedTransfer wrappedTransfer) {
+        if (journal != null) {
+            journal.committed(wrappedTransfer);
+        }
+        ComponentId componentId = wrappedTransfer.getTransfer().getComponentId();
+        DeviceState destination = wrappedTransfer.getDestination();
+        componentPlacement.release(componentId.getId(),
+                destination == null ? ComponentPlacement.MISSING : destination.getIndex());
     }
 
-    private boolean invalidComponent(ComponentId componentId, DeviceId sourceDeviceId) {
-        for (ComponentId component : componentPlacement.keySet()) {
-            if (!componentPlacement.containsKey(componentId)) {
-                return true;
+    // Phases 2 and 3 of a transfer executed by an executor, which are run
+    // as continuations instead of sleeping. An admitted transfer is started at
+    // once, otherwise it is started by the transfer that wakes it up:
+    private void dispatch(WrappedTransfer wrappedTransfer, boolean admitted) {
+        Runnable continuation = () -> continueAfterAdmission(wrappedTransfer);
+        if (admitted || wrappedTransfer.goToSleep(continuation)) {
+            wrappedTransfer.getExecutor().execute(continuation);
+        }
+    }
+
+    private void continueAfterAdmission(WrappedTransfer wrappedTransfer) {
+        try {
+            metrics.admitted(wrappedTransfer);
+            awaitJournal(wrappedTransfer);
+        } catch (Throwable e) {
+            wrappedTransfer.getCompletion().completeExceptionally(e);
+            return;
+        }
+        continuePreparing(wrappedTransfer);
+    }
+
+    // Operations of a transfer waiting for the limits of its devices are
+    // continued later, by the executor, from the beginning of the method:
+    private void continuePreparing(WrappedTransfer wrappedTransfer) {
+        if (isThrottled(wrappedTransfer)
+                && !passThrottles(wrappedTransfer, () -> continuePreparing(wrappedTransfer))) {
+            return;
+        }
+        try {
+            try {
+                wrappedTransfer.getTransfer().prepare();
+            } finally {
+                endThrottled(wrappedTransfer);
             }
-            if (componentId.equals(component) && !sourceDeviceId.equals(componentPlacement.get(component))) {
-                return true;
+            metrics.prepared(wrappedTransfer);
+            releaseSourcePlace(wrappedTransfer);
+            if (wrappedTransfer.isWaitingForPredecessor()
+                    && !wrappedTransfer.goToSleep(() -> continueAfterPredecessor(wrappedTransfer))) {
+                return;
             }
+        } catch (Throwable e) {
+            wrappedTransfer.getCompletion().completeExceptionally(e);
+            return;
         }
-        return false;
+        continueAfterPredecessor(wrappedTransfer);
+    }
+
+    private void continueAfterPredecessor(WrappedTransfer wrappedTransfer) {
+        metrics.predecessorPrepared(wrappedTransfer);
+        continuePerforming(wrappedTransfer);
     }
 
-    private WrappedTransfer popFromQueueOfThisDevice(DeviceId deviceId) {
-        for (WrappedTransfer wrappedTransfer : waitingTransfers) {
-            if (wrappedTransfer.getTransfer().getDestinationDeviceId().equals(deviceId)) {
-                waitingTransfers.remove(wrappedTransfer);
-                return wrappedTransfer;
+    private void continuePerforming(WrappedTransfer wrappedTransfer) {
+        if (isThrottled(wrappedTransfer)
+                && !passThrottles(wrappedTransfer, () -> continuePerforming(wrappedTransfer))) {
+            return;
+        }
+        try {
+            try {
+                wrappedTransfer.getTransfer().perform();
+            } finally {
+                endThrottled(wrappedTransfer);
             }
+            metrics.performed(wrappedTransfer);
+            finish(wrappedTransfer);
+        } catch (Throwable e) {
+            wrappedTransfer.getCompletion().completeExceptionally(e);
+            return;
         }
-        return null;
+        wrappedTransfer.getCompletion().complete(null);
     }
 
-    private ArrayList<WrappedTransfer> cycleDetector(DeviceId current, Set<DeviceId> visited) {
-        if (current == null) {
-            return null;
+    // A transfer is recorded in the journal when it gives away its source
+    // place, before any transfer taking that place can be recorded:
+    private void journalStarted(WrappedTransfer wrappedTransfer) {
+        if (journal != null) {
+            wrappedTransfer.setJournalSequence(journal.started(wrappedTransfer));
         }
-        visited.add(current);
-        ArrayList<WrappedTransfer> cycle = new ArrayList<>();
-        if (checkIfSomeoneIsWaitingFor(current)) {
-            Queue<WrappedTransfer> transfers = makeListOfTransfersTo(current);
-            for (WrappedTransfer wrappedTransfer : transfers) {
-                if (visited.contains(wrappedTransfer.getTransfer().getSourceDeviceId())) {
-                    cycle.add(wrappedTransfer);
-                    return cycle;
-                } else {
-                    ArrayList<WrappedTransfer> subcycle = cycleDetector(
-                            wrappedTransfer.getTransfer().getSourceDeviceId(), visited);
-                    if (subcycle != null) {
-                        cycle.add(wrappedTransfer);
-                        cycle.addAll(subcycle);
-                        return cycle;
-                    }
-                }
+    }
+
+    private void journalStartedCycle(WrappedTransfer closing) {
+        if (journal != null) {
+            long sequence = journal.startedCycle(closing);
+            WrappedTransfer current = closing;
+            do {
+                current.setJournalSequence(sequence);
+                current = current.getTransferToWakeUp();
+            } while (current != closing);
+        }
+    }
+
+    // The record of the transfer has to be durable before it is prepared.
+    // If the journal has failed, the transfer is aborted and the failure is rethrown.
+    private void awaitJournal(WrappedTransfer wrappedTransfer) {
+        if (journal != null) {
+            try {
+                journal.awaitDurable(wrappedTransfer.getJournalSequence());
+            } catch (UncheckedIOException e) {
+                abort(wrappedTransfer);
+                throw e;
+            }
+        }
+    }
+
+    // Undoes the admission of a transfer that has not been prepared, so its
+    // component stays where it is. A transfer that has taken the place on
+    // the source device is woken up as if the place has been released, but
+    // it is told that it has not; since its record follows the record of
+    // this transfer in the journal, it is aborted too. The place on the
+    // destination device is given back once it is free - a predecessor
+    // is waited for, unless it has been aborted as well.
+    private void abort(WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        if (source != null) {
+            source.lock();
+            WrappedTransfer successor = wrappedTransfer.getTransferToWakeUp();
+            if (successor != null) {
+                successor.setPredecessorAborted(true);
+            } else {
+                source.getReadyTransfers().remove(wrappedTransfer);
+            }
+            source.unlock();
+            if (successor != null) {
+                successor.wakeUp();
+            }
+        }
+        componentPlacement.unclaim(wrappedTransfer.getTransfer().getComponentId().getId());
+        if (wrappedTransfer.isWaitingForPredecessor()) {
+            if (wrappedTransfer.getExecutor() == null) {
+                wrappedTransfer.goToSleep();
+            } else if (!wrappedTransfer.goToSleep(() -> releaseAbortedPlace(wrappedTransfer))) {
+                return;
+            }
+        }
+        releaseAbortedPlace(wrappedTransfer);
+    }
+
+    private void releaseAbortedPlace(WrappedTransfer wrappedTransfer) {
+        DeviceState destination = wrappedTransfer.getDestination();
+        if (destination != null && !wrappedTransfer.isPredecessorAborted()) {
+            returnSlots(destination, 1);
+        }
+    }
+
+    // Waits until the transfer may start an operation on its devices.
+    private void awaitThrottles(WrappedTransfer wrappedTransfer) {
+        if (!isThrottled(wrappedTransfer)) {
+            return;
+        }
+        Semaphore started = new Semaphore(0);
+        while (!passThrottles(wrappedTransfer, started::release)) {
+            started.acquireUninterruptibly();
+        }
+    }
+
+    private boolean isThrottled(WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        DeviceState destination = wrappedTransfer.getDestination();
+        return (source != null && source.getThrottle() != null)
+                || (destination != null && destination.getThrottle() != null);
+    }
+
+    // Takes tokens of both devices of the transfer and starts an operation on
+    // each of them, in the order of their ids, so transfers waiting for places
+    // of operations never wait for each other in a cycle. No other mutex is
+    // held meanwhile. Returns true if the operation may start at once.
+    // Otherwise returns false and the continuation is resumed when the
+    // transfer should call the method again - for a transfer executed
+    // asynchronously, it is submitted to the executor. Only for transfers
+    // with a throttled device.
+    private boolean passThrottles(WrappedTransfer wrappedTransfer, Runnable continuation) {
+        Executor resumingExecutor = wrappedTransfer.getExecutor() == null
+                ? Runnable::run : wrappedTransfer.getExecutor();
+        DeviceThrottle first = throttle(wrappedTransfer.getSource());
+        DeviceThrottle second = throttle(wrappedTransfer.getDestination());
+        if (first != null && second != null
+                && wrappedTransfer.getDestination().compareTo(wrappedTransfer.getSource()) < 0) {
+            first = second;
+            second = throttle(wrappedTransfer.getSource());
+        }
+        // Stages: 0 - tokens, 1 - the first device, 2 - the second device,
+        // 3 - both devices started. A transfer that has to wait moves on to
+        // the next stage first, which it continues from when it is resumed:
+        int stage = wrappedTransfer.getThrottleStage();
+        if (stage == 0) {
+            long delay = Math.max(
+                    first == null ? 0 : first.reserveToken(),
+                    second == null ? 0 : second.reserveToken());
+            wrappedTransfer.setThrottleStage(1);
+            if (delay > 0) {
+                metrics.throttled();
+                CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, resumingExecutor)
+                        .execute(continuation);
+                return false;
+            }
+        }
+        Runnable resume = () -> resumingExecutor.execute(continuation);
+        if (stage <= 1) {
+            wrappedTransfer.setThrottleStage(2);
+            if (first != null && !first.tryStart(resume)) {
+                metrics.throttled();
+                return false;
+            }
+        }
+        if (stage <= 2) {
+            wrappedTransfer.setThrottleStage(3);
+            if (second != null && !second.tryStart(resume)) {
+                metrics.throttled();
+                return false;
+            }
+        }
+        wrappedTransfer.setThrottleStage(0);
+        return true;
+    }
+
+    // Ends the operation of the transfer on both of its devices.
+    private void endThrottled(WrappedTransfer wrappedTransfer) {
+        DeviceThrottle sourceThrottle = throttle(wrappedTransfer.getSource());
+        DeviceThrottle destinationThrottle = throttle(wrappedTransfer.getDestination());
+        if (sourceThrottle != null) {
+            sourceThrottle.end();
+        }
+        if (destinationThrottle != null) {
+            destinationThrottle.end();
+        }
+    }
+
+    private static DeviceThrottle throttle(DeviceState device) {
+        return device == null ? null : device.getThrottle();
+    }
+
+    // Either device may be null; they are locked in the order of their ids.
+    private void lockInOrder(DeviceState first, DeviceState second) {
+        if (first != null && second != null && second.compareTo(first) < 0) {
+            second.lock();
+            first.lock();
+        } else {
+            if (first != null) {
+                first.lock();
+            }
+            if (second != null) {
+                second.lock();
             }
         }
-        return null;
     }
 
-    private boolean checkIfSomeoneIsWaitingFor(DeviceId deviceId) {
-        for (WrappedTransfer wrappedTransfer : waitingTransfers) {
-            if (wrappedTransfer.getTransfer().getDestinationDeviceId().equals(deviceId)) {
-                return true;
+    private void unlockInOrder(DeviceState first, DeviceState second) {
+        if (first != null) {
+            first.unlock();
+        }
+        if (second != null) {
+            second.unlock();
+        }
+    }
+
+    // Gives the place on the source device of an admitted transfer to the first
+    // transfer waiting for it; if there is none, the place can be claimed later
+    // by a transfer arriving before this one is prepared. The transfer taken
+    // from the queue is admitted, and has to be passed to passBaton() once
+    // the devices are unlocked. The source device has to be locked.
+    private void handOverSourcePlace(WrappedTransfer wrappedTransfer, DeviceState source) {
+        wrappedTransfer.setSourceHandedOver(true);
+        journalStarted(wrappedTransfer);
+        if (source == null) {
+            return;
+        }
+        WrappedTransfer transferToWakeUp = null;
+        if (!source.getWaitingTransfers().isEmpty()) {
+            waitForGraph.lock();
+            transferToWakeUp = source.getWaitingTransfers().poll();
+            if (transferToWakeUp != null) {
+                removeWaitForEdge(transferToWakeUp);
+            }
+            waitForGraph.unlock();
+        }
+        if (transferToWakeUp != null) {
+            wrappedTransfer.setTransferToWakeUp(transferToWakeUp);
+            transferToWakeUp.setWaitingForPredecessor(true);
+            // Our transfer has already been admitted, so the other one can be admitted too:
+            wrappedTransfer.setAdmittedTransfer(transferToWakeUp);
+        } else {
+            source.getReadyTransfers().add(wrappedTransfer);
+        }
+    }
+
+    // Adds the transfer to the queue of the destination device and to the wait-for
+    // graph, unless it closes a cycle of waiting transfers. In that case every
+    // transfer of the cycle gives its place to the next one and all of them are
+    // admitted at once. A transfer that may not wait is only admitted if it
+    // closes a cycle. Returns true if the transfer has been admitted.
+    // Both devices have to be locked.
+    private boolean waitOrCloseCycle(
+            WrappedTransfer wrappedTransfer, DeviceState source, DeviceState destination, boolean mayWait) {
+        boolean admitted = false;
+        waitForGraph.lock();
+        if (source == null) {
+            // Adding a component never closes a cycle:
+            if (mayWait) {
+                queue(wrappedTransfer, destination);
+            }
+        } else {
+            long searchTime = metrics.startTiming();
+            List<DeviceState> cycleDevices = waitForGraph.addEdge(destination, source);
+            metrics.cycleSearch(searchTime);
+            if (cycleDevices != null) {
+                admitCycle(wrappedTransfer, cycleDevices);
+                admitted = true;
+            } else if (mayWait) {
+                queue(wrappedTransfer, destination);
+            } else {
+                waitForGraph.removeEdge(destination, source);
             }
         }
-        return false;
+        waitForGraph.unlock();
+        return admitted;
     }
 
-    private Queue<WrappedTransfer> makeListOfTransfersTo(DeviceId deviceId) {
-        Queue<WrappedTransfer> result = new LinkedList<>();
-        for (WrappedTransfer wrappedTransfer : waitingTransfers) {
-            if (wrappedTransfer.getTransfer().getDestinationDeviceId().equals(deviceId)) {
-                result.add(wrappedTransfer);
+    // Waiting transfers are ordered by their virtual deadlines, so the place
+    // released on the device is given to the most urgent one. Without
+    // priorities and deadlines this is the order of arrival. Queueing takes
+    // O(1) time, see WaitingTransferQueue.
+    // The device and the wait-for graph have to be locked.
+    private void queue(WrappedTransfer wrappedTransfer, DeviceState destination) {
+        long now = System.nanoTime();
+        long virtualDeadline = now;
+        if (wrappedTransfer.getTransfer() instanceof PrioritizedTransfer) {
+            PrioritizedTransfer transfer = (PrioritizedTransfer) wrappedTransfer.getTransfer();
+            virtualDeadline -= transfer.getPriority() * AGING_STEP;
+            long deadline = transfer.getDeadline();
+            if (deadline != Long.MAX_VALUE && deadline - virtualDeadline < 0) {
+                virtualDeadline = deadline;
             }
         }
-        return result;
+        wrappedTransfer.setVirtualDeadline(virtualDeadline);
+        destination.getWaitingTransfers().add(wrappedTransfer, Math.floorDiv(now - virtualDeadline, AGING_STEP));
+        metrics.queued();
+    }
+
+    // The cycle is closed by the given transfer, which waits for the last device
+    // and releases a place on the first one. For every following pair of devices
+    // there is a transfer waiting for the first one that releases the second one.
+    // They are woken up by wakeUpCycle() once the mutexes are released.
+    // The wait-for graph has to be locked.
+    private void admitCycle(WrappedTransfer closing, List<DeviceState> cycleDevices) {
+        WrappedTransfer current = closing;
+        for (int i = 0; i + 1 < cycleDevices.size(); i++) {
+            WrappedTransfer next = findWaitingTransfer(cycleDevices.get(i), cycleDevices.get(i + 1));
+            cycleDevices.get(i).getWaitingTransfers().remove(next);
+            waitForGraph.removeEdge(cycleDevices.get(i), cycleDevices.get(i + 1));
+            linkInCycle(current, next);
+            current = next;
+        }
+        linkInCycle(current, closing);
+        journalStartedCycle(closing);
+        metrics.cycleResolved(cycleDevices.size());
+        closing.setClosingCycle(true);
+    }
+
+    // Sleeping transfers of the cycle closed by the transfer, if it has closed
+    // one, are admitted. No mutex can be held, see WrappedTransfer.wakeUp().
+    // Transfers of the cycle are not woken up by anybody else until then, so
+    // the links are still valid. A woken transfer may be finished and reused
+    // at once, so its successor is taken first.
+    private void wakeUpCycle(WrappedTransfer closing) {
+        if (!closing.isClosingCycle()) {
+            return;
+        }
+        closing.setClosingCycle(false);
+        WrappedTransfer current = closing.getTransferToWakeUp();
+        while (current != closing) {
+            WrappedTransfer next = current.getTransferToWakeUp();
+            current.wakeUp();
+            current = next;
+        }
+    }
+
+    // The first transfer releases the place that the second one is waiting for:
+    private void linkInCycle(WrappedTransfer current, WrappedTransfer next) {
+        current.setTransferToWakeUp(next);
+        current.setSourceHandedOver(true);
+        next.setWaitingForPredecessor(true);
+    }
+
+    // Returns a transfer waiting for a place on the device that releases
+    // a place on the other device. The wait-for graph has to be locked.
+    private WrappedTransfer findWaitingTransfer(DeviceState device, DeviceState released) {
+        return device.getWaitingTransfers().findBySource(released);
+    }
+
+    // The wait-for graph has to be locked.
+    private void removeWaitForEdge(WrappedTransfer wrappedTransfer) {
+        if (wrappedTransfer.getSource() != null) {
+            waitForGraph.removeEdge(wrappedTransfer.getDestination(), wrappedTransfer.getSource());
+        }
     }
 
-}
\ No newline at end of file
+}
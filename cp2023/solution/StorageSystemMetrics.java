@@ -0,0 +1,327 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and latency histograms of a storage system.
+//
+// Counters and histograms are striped, so transfers do not contend on them.
+// Counters are exact. Counters of events that only happen when a transfer
+// cannot take a free place at once, and sizes of queues, are always
+// collected; counters updated by every transfer only while the metrics are
+// enabled. Durations, which need System.nanoTime() at every phase of
+// a transfer, are only collected while the metrics are enabled, and only for
+// a random sample of transfers and lock holds. Percentiles are those of the
+// sample, and counts of histograms are counts of samples.
+//
+// Phases of a transfer are timed as follows: admission wait is the time from
+// the validation of the transfer to its admission, including the time spent
+// in the queue; then prepare(), waiting for the predecessor to be prepared
+// and perform(). Device lock hold is the time both devices are locked when
+// a transfer cannot take a free place at once, and cycle search is the time
+// of looking for a cycle in the wait-for graph. Throttled is the number of
+// times an operation has waited for the limits of its devices. Batons passed
+// is the number of waiting transfers admitted by the thread of another one.
+public class StorageSystemMetrics implements StorageSystemMetricsMXBean {
+    // One in this many transfers and lock holds is timed:
+    private static final int SAMPLING = 64;
+
+    private final DeviceState[] devices;
+
+    private volatile boolean enabled;
+
+    private final LongAdder admittedAtOnce = new LongAdder();
+    private final LongAdder admittedByLeavingTransfer = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder cyclesResolved = new LongAdder();
+    private final LongAdder transfersInCycles = new LongAdder();
+    private final LongAdder withdrawn = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder batonsPassed = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejectedBeingOperatedOn = new LongAdder();
+    private final LongAdder rejectedInvalid = new LongAdder();
+
+    private final LatencyHistogram admissionWait = new LatencyHistogram();
+    private final LatencyHistogram prepare = new LatencyHistogram();
+    private final LatencyHistogram predecessorWait = new LatencyHistogram();
+    private final LatencyHistogram perform = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram deviceLockHold = new LatencyHistogram();
+    private final LatencyHistogram cycleSearch = new LatencyHistogram();
+
+    public StorageSystemMetrics(DeviceState[] devices) {
+        this.devices = devices;
+    }
+
+    // Registers the metrics in the platform MBean server under the given name.
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("cp2023.solution:type=StorageSystem,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics as " + name, e);
+        }
+    }
+
+    public void unregisterMBean(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister metrics " + objectName, e);
+        }
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getAdmittedAtOnce() {
+        return admittedAtOnce.sum();
+    }
+
+    @Override
+    public long getAdmittedByLeavingTransfer() {
+        return admittedByLeavingTransfer.sum();
+    }
+
+    @Override
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    @Override
+    public long getCyclesResolved() {
+        return cyclesResolved.sum();
+    }
+
+    @Override
+    public long getTransfersInCycles() {
+        return transfersInCycles.sum();
+    }
+
+    @Override
+    public long getWithdrawn() {
+        return withdrawn.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getBatonsPassed() {
+        return batonsPassed.sum();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejectedBeingOperatedOn() {
+        return rejectedBeingOperatedOn.sum();
+    }
+
+    @Override
+    public long getRejectedInvalid() {
+        return rejectedInvalid.sum();
+    }
+
+    // Sizes of queues are read without locking devices, so the result is approximate.
+    @Override
+    public int getWaitingTransfers() {
+        int waiting = 0;
+        for (DeviceState device : devices) {
+            waiting += device.getWaitingTransfers().size();
+        }
+        return waiting;
+    }
+
+    // Only devices with waiting transfers are included.
+    @Override
+    public Map<String, Integer> getWaitingTransfersPerDevice() {
+        Map<String, Integer> waiting = new TreeMap<>();
+        for (DeviceState device : devices) {
+            int size = device.getWaitingTransfers().size();
+            if (size > 0) {
+                waiting.put(device.getDeviceId().toString(), size);
+            }
+        }
+        return waiting;
+    }
+
+    @Override
+    public LatencySummary getAdmissionWait() {
+        return admissionWait.getSummary();
+    }
+
+    @Override
+    public LatencySummary getPrepare() {
+        return prepare.getSummary();
+    }
+
+    @Override
+    public LatencySummary getPredecessorWait() {
+        return predecessorWait.getSummary();
+    }
+
+    @Override
+    public LatencySummary getPerform() {
+        return perform.getSummary();
+    }
+
+    @Override
+    public LatencySummary getTotal() {
+        return total.getSummary();
+    }
+
+    @Override
+    public LatencySummary getDeviceLockHold() {
+        return deviceLockHold.getSummary();
+    }
+
+    @Override
+    public LatencySummary getCycleSearch() {
+        return cycleSearch.getSummary();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("admitted at once=%d, by leaving transfer=%d, queued=%d, "
+                        + "cycles=%d (%d transfers), withdrawn=%d, throttled=%d, "
+                        + "batons passed=%d, completed=%d, "
+                        + "rejected: being operated on=%d, invalid=%d, waiting=%d",
+                getAdmittedAtOnce(), getAdmittedByLeavingTransfer(), getQueued(),
+                getCyclesResolved(), getTransfersInCycles(), getWithdrawn(), getThrottled(),
+                getBatonsPassed(), getCompleted(),
+                getRejectedBeingOperatedOn(), getRejectedInvalid(), getWaitingTransfers());
+    }
+
+    // ------------------ Recording ------------------
+
+    void admittedAtOnce() {
+        if (enabled) {
+            admittedAtOnce.increment();
+        }
+    }
+
+    void admittedByLeavingTransfer() {
+        admittedByLeavingTransfer.increment();
+    }
+
+    void queued() {
+        queued.increment();
+    }
+
+    void cycleResolved(int transfers) {
+        cyclesResolved.increment();
+        transfersInCycles.add(transfers);
+    }
+
+    void withdrawn() {
+        withdrawn.increment();
+    }
+
+    void throttled() {
+        throttled.increment();
+    }
+
+    void batonPassed() {
+        batonsPassed.increment();
+    }
+
+    void rejectedBeingOperatedOn() {
+        rejectedBeingOperatedOn.increment();
+    }
+
+    void rejectedInvalid() {
+        rejectedInvalid.increment();
+    }
+
+    // Returns the current time, or 0 if the metrics are disabled or
+    // the operation is not sampled.
+    long startTiming() {
+        return enabled && sampled() ? System.nanoTime() : 0;
+    }
+
+    void deviceLockHold(long start) {
+        if (start != 0) {
+            deviceLockHold.record(System.nanoTime() - start);
+        }
+    }
+
+    void cycleSearch(long start) {
+        if (start != 0) {
+            cycleSearch.record(System.nanoTime() - start);
+        }
+    }
+
+    // Phases of a transfer are timed from the time stored in the transfer,
+    // which is 0 if the transfer is not timed.
+
+    void startTiming(WrappedTransfer wrappedTransfer) {
+        if (enabled && sampled()) {
+            long now = System.nanoTime();
+            wrappedTransfer.setStartTime(now);
+            wrappedTransfer.setPhaseStartTime(now);
+        }
+    }
+
+    void admitted(WrappedTransfer wrappedTransfer) {
+        endPhase(wrappedTransfer, admissionWait);
+    }
+
+    void prepared(WrappedTransfer wrappedTransfer) {
+        endPhase(wrappedTransfer, prepare);
+    }
+
+    void predecessorPrepared(WrappedTransfer wrappedTransfer) {
+        endPhase(wrappedTransfer, predecessorWait);
+    }
+
+    void performed(WrappedTransfer wrappedTransfer) {
+        if (enabled) {
+            completed.increment();
+        }
+        if (wrappedTransfer.getStartTime() != 0) {
+            endPhase(wrappedTransfer, perform);
+            total.record(wrappedTransfer.getPhaseStartTime() - wrappedTransfer.getStartTime());
+        }
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private static boolean sampled() {
+        return ThreadLocalRandom.current().nextInt(SAMPLING) == 0;
+    }
+
+    private static void endPhase(WrappedTransfer wrappedTransfer, LatencyHistogram histogram) {
+        if (wrappedTransfer.getStartTime() != 0) {
+            long now = System.nanoTime();
+            histogram.record(now - wrappedTransfer.getPhaseStartTime());
+            wrappedTransfer.setPhaseStartTime(now);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.Map;
+
+// Management interface of StorageSystemMetrics, for monitoring the system over JMX.
+public interface StorageSystemMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getAdmittedAtOnce();
+
+    long getAdmittedByLeavingTransfer();
+
+    long getQueued();
+
+    long getCyclesResolved();
+
+    long getTransfersInCycles();
+
+    long getWithdrawn();
+
+    long getThrottled();
+
+    long getBatonsPassed();
+
+    long getCompleted();
+
+    long getRejectedBeingOperatedOn();
+
+    long getRejectedInvalid();
+
+    int getWaitingTransfers();
+
+    Map<String, Integer> getWaitingTransfersPerDevice();
+
+    LatencySummary getAdmissionWait();
+
+    LatencySummary getPrepare();
+
+    LatencySummary getPredecessorWait();
+
+    LatencySummary getPerform();
+
+    LatencySummary getTotal();
+
+    LatencySummary getDeviceLockHold();
+
+    LatencySummary getCycleSearch();
+}
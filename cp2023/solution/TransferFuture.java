@@ -0,0 +1,25 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.concurrent.CompletableFuture;
+
+// Future of an asynchronous transfer. Only a transfer that is still waiting
+// for a place can be cancelled - it is then withdrawn from the system.
+// Once the transfer has been admitted, cancel() returns false.
+public class TransferFuture extends CompletableFuture<Void> {
+    private final StorageSystemInstance system;
+    private final WrappedTransfer wrappedTransfer;
+
+    public TransferFuture(StorageSystemInstance system, WrappedTransfer wrappedTransfer) {
+        this.system = system;
+        this.wrappedTransfer = wrappedTransfer;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return system.withdraw(wrappedTransfer) && super.cancel(mayInterruptIfRunning);
+    }
+}
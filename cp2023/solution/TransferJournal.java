@@ -0,0 +1,410 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+// Append-only journal of transfers, replayed on top of a snapshot after
+// a crash. A transfer is recorded as started when it gives away the place on
+// its source device, so the record of a transfer always precedes the records
+// of transfers that take its place. The record is durable before prepare()
+// is called. A transfer is recorded as committed after perform(), but that
+// record is not waited for - it is made durable together with later records.
+//
+// Records of concurrent transfers are collected in a buffer, and a thread
+// that needs its record to be durable writes and forces the whole buffer at
+// once (group commit). Threads arriving meanwhile wait for that thread and
+// then force everything collected during its write with a single call.
+//
+// Transfers of a cycle take each other's places, and each of them performs
+// only after the next one is prepared, so records of a cycle are written as
+// a group preceded by a header and replayed either all or none.
+//
+// If a write fails, the journal fails for good: records that are not durable
+// yet are dropped, also from the file, and waiting for them, or for any later
+// record, throws UncheckedIOException. Transfers whose records are not durable
+// are then aborted by the system, so the journal and the placement stay
+// consistent.
+//
+// Every record is five little-endian ints: type with flags, component id
+// (or the size of the group for a header), source device id, destination
+// device id and a checksum. A torn record or group at the end of the file
+// is dropped when the journal is opened.
+public class TransferJournal {
+    private static final int STARTED = 1;
+    private static final int COMMITTED = 2;
+    private static final int HAS_SOURCE = 4;
+    private static final int HAS_DESTINATION = 8;
+    private static final int CYCLE = 16;
+    private static final int RECORD_SIZE = 20;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    private final ChannelOpener opener;
+    private FileChannel channel;
+    // Length of the durable part of the file, guarded by the flush mutex:
+    private long fileSize;
+
+    // Records not written yet and the number of appends since the journal was opened:
+    private final Semaphore mutex = new Semaphore(1);
+    private ByteBuffer buffer = newBuffer(INITIAL_BUFFER_SIZE);
+    private long appended;
+    private volatile long recordCount;
+
+    // Only one thread writes to the file at a time:
+    private final Semaphore flushMutex = new Semaphore(1);
+    private ByteBuffer spareBuffer = newBuffer(INITIAL_BUFFER_SIZE);
+    private volatile long durable;
+    private volatile long flushes;
+    // Set once a write has failed:
+    private volatile IOException failure;
+
+    // Transfers started but not committed before the journal was opened:
+    private final List<Transfer> unfinishedTransfers;
+
+    // Opens the file of the journal for appending; tests replace it to inject failures.
+    interface ChannelOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private TransferJournal(Path path, ChannelOpener opener, long fileSize, List<Transfer> unfinishedTransfers)
+            throws IOException {
+        this.path = path;
+        this.opener = opener;
+        this.fileSize = fileSize;
+        this.unfinishedTransfers = unfinishedTransfers;
+        this.channel = opener.open(path);
+        // Dropping a torn record, so new records follow the last complete one:
+        channel.truncate(fileSize);
+    }
+
+    // ----------------- Getters & setters -----------------
+
+    // Transfers that were started but not committed when the journal was
+    // written for the last time. They are treated as finished, since places
+    // on their destination devices may have been given to others, but their
+    // perform() might have not been completed.
+    public List<Transfer> getUnfinishedTransfers() {
+        return unfinishedTransfers;
+    }
+
+    public long getRecords() {
+        return recordCount;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    // ----------------------------- Public methods -----------------------------
+
+    // Replays the journal on top of the snapshot, which is updated with every
+    // transfer started in the journal, and opens the journal for appending.
+    // The file is created if it does not exist. Throws IllegalArgumentException
+    // if the journal does not match the snapshot.
+    public static TransferJournal open(Path path, PlacementSnapshot snapshot) throws IOException {
+        return open(path, snapshot, TransferJournal::openChannel);
+    }
+
+    static TransferJournal open(Path path, PlacementSnapshot snapshot, ChannelOpener opener) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(0);
+        try (FileChannel channel = openChannel(path)) {
+            long size = channel.size();
+            if (size > 0) {
+                records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        IntIntHashMap deviceIndices = snapshot.getDeviceIndices();
+        DeviceId[] deviceIds = snapshot.getDeviceIds();
+        int[] deviceFreeSlots = snapshot.getDeviceFreeSlots();
+        ComponentPlacement placement = snapshot.getComponentPlacement();
+        // Started transfers by their components, as indices in the list:
+        List<Transfer> started = new ArrayList<>();
+        IntIntHashMap open = new IntIntHashMap(0);
+
+        while (records.remaining() >= RECORD_SIZE) {
+            int type = records.getInt();
+            int componentId = records.getInt();
+            int sourceId = records.getInt();
+            int destinationId = records.getInt();
+            if (records.getInt() != checksum(type, componentId, sourceId, destinationId)) {
+                records.position(records.position() - RECORD_SIZE);
+                break;
+            }
+            if ((type & CYCLE) != 0) {
+                if (!isWholeGroup(records, componentId)) {
+                    records.position(records.position() - RECORD_SIZE);
+                    break;
+                }
+                continue;
+            }
+            if ((type & COMMITTED) != 0) {
+                if (open.remove(componentId) == IntIntHashMap.MISSING) {
+                    throw new IllegalArgumentException("Committed transfer was not started");
+                }
+                continue;
+            }
+            int source = (type & HAS_SOURCE) == 0 ? ComponentPlacement.MISSING : deviceIndices.get(sourceId);
+            int destination = (type & HAS_DESTINATION) == 0
+                    ? ComponentPlacement.MISSING : deviceIndices.get(destinationId);
+            if (((type & HAS_SOURCE) != 0 && source == IntIntHashMap.MISSING)
+                    || ((type & HAS_DESTINATION) != 0 && destination == IntIntHashMap.MISSING)) {
+                throw new IllegalArgumentException("No device with this id in devices");
+            }
+            if (placement.get(componentId) != source || open.get(componentId) != IntIntHashMap.MISSING) {
+                throw new IllegalArgumentException("Started transfer does not match the placement");
+            }
+            // The transfer is rolled forward:
+            placement.release(componentId, destination);
+            if (source != ComponentPlacement.MISSING) {
+                deviceFreeSlots[source]++;
+            }
+            if (destination != ComponentPlacement.MISSING) {
+                deviceFreeSlots[destination]--;
+            }
+            open.put(componentId, started.size());
+            started.add(new Transfer(ComponentId.of(componentId),
+                    source == ComponentPlacement.MISSING ? null : deviceIds[source],
+                    destination == ComponentPlacement.MISSING ? null : deviceIds[destination]));
+        }
+
+        // Transfers of a cycle take each other's places, so capacities can only
+        // be checked once all of them have been replayed:
+        for (int i = 0; i < deviceIds.length; i++) {
+            if (deviceFreeSlots[i] < 0) {
+                throw new IllegalArgumentException(deviceIds[i].toString() + " capacity exceeded");
+            }
+        }
+
+        List<Transfer> unfinishedTransfers = new ArrayList<>();
+        for (int i = 0; i < started.size(); i++) {
+            Transfer transfer = started.get(i);
+            if (open.get(transfer.getComponentId().getId()) == i) {
+                unfinishedTransfers.add(transfer);
+            }
+        }
+        return new TransferJournal(path, opener, records.position(), Collections.unmodifiableList(unfinishedTransfers));
+    }
+
+    // Returns the sequence number to wait for before prepare() is called.
+    // Can be called while devices are locked - it only copies the record.
+    public long started(WrappedTransfer wrappedTransfer) {
+        mutex.acquireUninterruptibly();
+        put(STARTED, wrappedTransfer);
+        long sequence = ++appended;
+        mutex.release();
+        return sequence;
+    }
+
+    // Records every transfer of a cycle, following the links to transfers to
+    // wake up from the given one. All of them wait for the same sequence number.
+    public long startedCycle(WrappedTransfer first) {
+        int size = 1;
+        for (WrappedTransfer current = first.getTransferToWakeUp(); current != first;
+                current = current.getTransferToWakeUp()) {
+            size++;
+        }
+        mutex.acquireUninterruptibly();
+        put(CYCLE, size, 0, 0);
+        WrappedTransfer current = first;
+        do {
+            put(STARTED, current);
+            current = current.getTransferToWakeUp();
+        } while (current != first);
+        long sequence = ++appended;
+        mutex.release();
+        return sequence;
+    }
+
+    public void committed(WrappedTransfer wrappedTransfer) {
+        mutex.acquireUninterruptibly();
+        put(COMMITTED, wrappedTransfer);
+        appended++;
+        mutex.release();
+    }
+
+    // Waits until the record with the given sequence number is durable.
+    // Throws UncheckedIOException if it cannot be made durable.
+    public void awaitDurable(long sequence) {
+        if (durable >= sequence) {
+            return;
+        }
+        flushMutex.acquireUninterruptibly();
+        try {
+            // Records appended while the previous thread was writing are
+            // written together, unless that write has covered ours:
+            if (durable < sequence) {
+                flush();
+            }
+        } finally {
+            flushMutex.release();
+        }
+    }
+
+    // Drops every record, once their transfers have been saved in a snapshot.
+    // No transfers can be executed meanwhile.
+    public void clear() throws IOException {
+        flushMutex.acquireUninterruptibly();
+        try {
+            flush();
+            channel.truncate(0);
+            channel.force(true);
+            fileSize = 0;
+        } finally {
+            flushMutex.release();
+        }
+    }
+
+    // A failed journal is closed without reporting the failure again.
+    public void close() throws IOException {
+        flushMutex.acquireUninterruptibly();
+        try {
+            if (failure == null) {
+                flush();
+            }
+        } finally {
+            channel.close();
+            flushMutex.release();
+        }
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int checksum(int type, int componentId, int sourceId, int destinationId) {
+        int h = type;
+        h = 31 * h + componentId;
+        h = 31 * h + sourceId;
+        h = 31 * h + destinationId;
+        return h ^ 0x5bd1e995;
+    }
+
+    // Checks that the group of the given size following the current position
+    // has not been torn, without moving the position.
+    private static boolean isWholeGroup(ByteBuffer records, int size) {
+        if (records.remaining() < (long) size * RECORD_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            int position = records.position() + i * RECORD_SIZE;
+            if (records.getInt(position + 16) != checksum(records.getInt(position),
+                    records.getInt(position + 4), records.getInt(position + 8), records.getInt(position + 12))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The mutex has to be held.
+    private void put(int type, WrappedTransfer wrappedTransfer) {
+        DeviceState source = wrappedTransfer.getSource();
+        DeviceState destination = wrappedTransfer.getDestination();
+        type |= (source == null ? 0 : HAS_SOURCE) | (destination == null ? 0 : HAS_DESTINATION);
+        put(type, wrappedTransfer.getTransfer().getComponentId().getId(),
+                source == null ? 0 : source.getDeviceId().getId(),
+                destination == null ? 0 : destination.getDeviceId().getId());
+    }
+
+    // Records are no longer collected once the journal has failed.
+    // The mutex has to be held.
+    private void put(int type, int componentId, int sourceId, int destinationId) {
+        if (failure != null) {
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            ByteBuffer larger = newBuffer(2 * buffer.capacity());
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.putInt(type).putInt(componentId).putInt(sourceId).putInt(destinationId)
+                .putInt(checksum(type, componentId, sourceId, destinationId));
+        recordCount++;
+    }
+
+    // Writes and forces every record appended so far. The flush mutex has to be held.
+    private void flush() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal has failed", failure);
+        }
+        mutex.acquireUninterruptibly();
+        ByteBuffer records = buffer;
+        buffer = spareBuffer;
+        long sequence = appended;
+        mutex.release();
+
+        records.flip();
+        try {
+            if (records.hasRemaining()) {
+                write(records);
+                flushes++;
+            }
+        } finally {
+            records.clear();
+            spareBuffer = records;
+        }
+        durable = sequence;
+    }
+
+    // The channel is closed if the writing thread is interrupted, so it is
+    // opened again and the write is repeated with the interruption cleared.
+    private void write(ByteBuffer records) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    long position = fileSize;
+                    while (records.hasRemaining()) {
+                        position += channel.write(records, position);
+                    }
+                    channel.force(false);
+                    fileSize = position;
+                    break;
+                } catch (ClosedByInterruptException e) {
+                    interrupted |= Thread.interrupted();
+                    records.rewind();
+                    channel = opener.open(path);
+                }
+            }
+        } catch (IOException e) {
+            // Records of aborted transfers must not be replayed, so whatever
+            // has been written of them is cut off, if the file still allows it:
+            try {
+                channel.truncate(fileSize);
+                channel.force(false);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            failure = e;
+            throw new UncheckedIOException("Journal could not be written", e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
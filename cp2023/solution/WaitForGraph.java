@@ -0,0 +1,194 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+// Graph of devices, with an edge from device A to device B for every transfer
+// waiting for a place on A that is going to release a place on B. A cycle in
+// the graph is a cycle of transfers that can only be executed all at once.
+//
+// The graph never contains a cycle, so it has a topological order, which is
+// maintained incrementally (Pearce & Kelly, "A Dynamic Topological Sort
+// Algorithm for Directed Acyclic Graphs"). An edge that agrees with the order
+// cannot close a cycle and is added in O(1) time; otherwise only the devices
+// between its ends in the order are searched. Removing an edge never breaks
+// the order.
+//
+// The mutex of the graph guards the graph and every change of the queues
+// of waiting transfers, so the graph always matches the queues. It is always
+// acquired as the last one, after the mutexes of devices.
+//
+// Edges are kept in maps of ints and searches reuse their buffers, so
+// the graph allocates nothing once its maps and buffers have grown.
+public class WaitForGraph {
+    private final Semaphore mutex = new Semaphore(1);
+    // Ends of edges are indices of devices in this array:
+    private final DeviceState[] devices;
+
+    // Searches mark visited devices with their number instead of clearing marks:
+    private int search;
+
+    // Buffers reused between searches:
+    private final ArrayList<DeviceState> stack = new ArrayList<>();
+    private final ArrayList<DeviceState> forward = new ArrayList<>();
+    private final ArrayList<DeviceState> backward = new ArrayList<>();
+    private final ArrayList<DeviceState> cycle = new ArrayList<>();
+    private int[] orders = new int[16];
+
+    private static final Comparator<DeviceState> BY_ORDER =
+            Comparator.comparingInt(DeviceState::getOrder);
+
+    public WaitForGraph(Collection<DeviceState> devices) {
+        this.devices = new DeviceState[devices.size()];
+        int order = 0;
+        for (DeviceState device : devices) {
+            this.devices[device.getIndex()] = device;
+            device.setOrder(order++);
+        }
+    }
+
+    // ------------------ Mutex operations ------------------
+
+    // The mutex is held only for a short time, so waiting for it is not
+    // interrupted; the interruption status of the thread is preserved.
+    public void lock() {
+        mutex.acquireUninterruptibly();
+    }
+
+    public void unlock() {
+        mutex.release();
+    }
+
+    // ------------------- Graph operations -------------------
+
+    // Adds the edge, unless it would close a cycle. In that case the graph is
+    // not modified and the devices of the cycle are returned, starting with
+    // the end of the edge and finishing with its beginning. The returned list
+    // is valid until the next call.
+    public List<DeviceState> addEdge(DeviceState from, DeviceState to) {
+        if (to.getOrder() < from.getOrder()) {
+            if (searchForward(to, from)) {
+                cycle.clear();
+                for (DeviceState device = from; device != to; device = device.getSearchParent()) {
+                    cycle.add(device);
+                }
+                cycle.add(to);
+                Collections.reverse(cycle);
+                forward.clear();
+                return cycle;
+            }
+            searchBackward(from, to.getOrder());
+            reorder();
+        }
+        increment(from.getOutEdges(), to.getIndex());
+        increment(to.getInEdges(), from.getIndex());
+        return null;
+    }
+
+    public void removeEdge(DeviceState from, DeviceState to) {
+        decrement(from.getOutEdges(), to.getIndex());
+        decrement(to.getInEdges(), from.getIndex());
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private static void increment(IntIntHashMap edges, int device) {
+        int count = edges.get(device);
+        edges.put(device, count == IntIntHashMap.MISSING ? 1 : count + 1);
+    }
+
+    private static void decrement(IntIntHashMap edges, int device) {
+        int count = edges.get(device);
+        if (count == 1) {
+            edges.remove(device);
+        } else {
+            edges.put(device, count - 1);
+        }
+    }
+
+    // Visits devices reachable from start that are before target in the order.
+    // Returns true if target itself is reachable.
+    private boolean searchForward(DeviceState start, DeviceState target) {
+        search++;
+        forward.clear();
+        stack.clear();
+        visit(start, null, forward);
+        while (!stack.isEmpty()) {
+            DeviceState device = stack.remove(stack.size() - 1);
+            IntIntHashMap edges = device.getOutEdges();
+            for (int slot = 0; slot < edges.capacity(); slot++) {
+                if (!edges.isUsed(slot)) {
+                    continue;
+                }
+                DeviceState next = devices[edges.keyAt(slot)];
+                if (next == target) {
+                    target.setSearchParent(device);
+                    stack.clear();
+                    return true;
+                }
+                if (next.getSearchMark() != search && next.getOrder() < target.getOrder()) {
+                    visit(next, device, forward);
+                }
+            }
+        }
+        return false;
+    }
+
+    // Visits devices from which start is reachable that are after the bound in the order.
+    private void searchBackward(DeviceState start, int bound) {
+        search++;
+        backward.clear();
+        stack.clear();
+        visit(start, null, backward);
+        while (!stack.isEmpty()) {
+            DeviceState device = stack.remove(stack.size() - 1);
+            IntIntHashMap edges = device.getInEdges();
+            for (int slot = 0; slot < edges.capacity(); slot++) {
+                if (!edges.isUsed(slot)) {
+                    continue;
+                }
+                DeviceState previous = devices[edges.keyAt(slot)];
+                if (previous.getSearchMark() != search && previous.getOrder() > bound) {
+                    visit(previous, device, backward);
+                }
+            }
+        }
+    }
+
+    private void visit(DeviceState device, DeviceState parent, ArrayList<DeviceState> visited) {
+        device.setSearchMark(search);
+        device.setSearchParent(parent);
+        visited.add(device);
+        stack.add(device);
+    }
+
+    // Moves all devices found by the backward search before all devices found
+    // by the forward search, reusing the positions they have been occupying.
+    private void reorder() {
+        int count = backward.size() + forward.size();
+        if (orders.length < count) {
+            orders = new int[2 * count];
+        }
+        for (int i = 0; i < backward.size(); i++) {
+            orders[i] = backward.get(i).getOrder();
+        }
+        for (int i = 0; i < forward.size(); i++) {
+            orders[backward.size() + i] = forward.get(i).getOrder();
+        }
+        Arrays.sort(orders, 0, count);
+        backward.sort(BY_ORDER);
+        forward.sort(BY_ORDER);
+        for (int i = 0; i < backward.size(); i++) {
+            backward.get(i).setOrder(orders[i]);
+        }
+        for (int i = 0; i < forward.size(); i++) {
+            forward.get(i).setOrder(orders[backward.size() + i]);
+        }
+        backward.clear();
+        forward.clear();
+    }
+}
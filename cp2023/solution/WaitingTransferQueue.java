@@ -0,0 +1,105 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+// Queue of transfers waiting for a place on a device, polled in the order of
+// their virtual deadlines. Transfers are kept at levels of urgency: how many
+// aging steps their virtual deadlines are ahead of the times they were queued.
+// Each level is a FIFO queue, so adding and removing a transfer take O(1)
+// time, and polling only compares the first transfers of the levels in use.
+// Transfers of a level are in the order of their virtual deadlines as long as
+// they are ahead by the same time, as they are for transfers with priorities
+// and no deadlines; a deadline may keep a transfer behind others of its level
+// for less than an aging step. Levels beyond the range are merged into the
+// lowest and the highest one, where transfers are only kept in FIFO order.
+public class WaitingTransferQueue {
+    private static final int LEVELS = Integer.SIZE;
+    // Ordinary transfers are at this level, transfers with negative
+    // priorities below it:
+    private static final int ORDINARY_LEVEL = 8;
+
+    // Created when first used:
+    private final WrappedTransferQueue[] levels = new WrappedTransferQueue[LEVELS];
+    // Bit i is set if level i is not empty:
+    private int usedLevels;
+    // Can be read without holding the mutex guarding the queue:
+    private volatile int size;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(WrappedTransfer wrappedTransfer) {
+        WrappedTransferQueue queue = wrappedTransfer.getQueue();
+        return queue != null && levels[wrappedTransfer.getQueueLevel()] == queue;
+    }
+
+    // The virtual deadline of the transfer has to be set; it is ahead of the
+    // time the transfer is queued by the given number of aging steps.
+    public void add(WrappedTransfer wrappedTransfer, long agingSteps) {
+        int level = (int) Math.max(0, Math.min(LEVELS - 1, ORDINARY_LEVEL + agingSteps));
+        if (levels[level] == null) {
+            levels[level] = new WrappedTransferQueue();
+        }
+        levels[level].add(wrappedTransfer);
+        wrappedTransfer.setQueueLevel(level);
+        usedLevels |= 1 << level;
+        size++;
+    }
+
+    // Returns the transfer with the earliest virtual deadline, or null if the
+    // queue is empty. Of equal ones, the one at the lower level is returned.
+    public WrappedTransfer peek() {
+        WrappedTransfer result = null;
+        for (int used = usedLevels; used != 0; used &= used - 1) {
+            WrappedTransfer first = levels[Integer.numberOfTrailingZeros(used)].peek();
+            if (result == null || first.getVirtualDeadline() - result.getVirtualDeadline() < 0) {
+                result = first;
+            }
+        }
+        return result;
+    }
+
+    public WrappedTransfer poll() {
+        WrappedTransfer result = peek();
+        if (result != null) {
+            remove(result);
+        }
+        return result;
+    }
+
+    public boolean remove(WrappedTransfer wrappedTransfer) {
+        if (!contains(wrappedTransfer)) {
+            return false;
+        }
+        int level = wrappedTransfer.getQueueLevel();
+        levels[level].remove(wrappedTransfer);
+        if (levels[level].isEmpty()) {
+            usedLevels &= ~(1 << level);
+        }
+        size--;
+        return true;
+    }
+
+    // Returns a transfer that releases a place on the given device, from the
+    // most urgent level that has one, or null if there is none. Takes time
+    // proportional to the number of transfers passed.
+    public WrappedTransfer findBySource(DeviceState source) {
+        for (int used = usedLevels; used != 0; ) {
+            int level = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(used);
+            for (WrappedTransfer current = levels[level].peek(); current != null; current = current.getNext()) {
+                if (current.getSource() == source) {
+                    return current;
+                }
+            }
+            used &= ~(1 << level);
+        }
+        return null;
+    }
+}
@@ -6,27 +6,169 @@ package cp2023.solution;
 
 import cp2023.base.ComponentTransfer;
 
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class WrappedTransfer {
-    private final ComponentTransfer transfer;
-    private final Semaphore semaphore = new Semaphore(0);
+    // A sleeping thread is often woken up soon, when the transfer it waits for
+    // has only to be prepared, so it spins for a while before it sleeps.
+    // Spinning makes sense only if the other thread can run meanwhile:
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+
+    // Transfers executed by the calling thread are reused, see reuse():
+    private ComponentTransfer transfer;
+    private DeviceState source;
+    private DeviceState destination;
+
+    // The counter is the number of wake-ups not consumed yet, or -1 if the
+    // transfer waits. The thread of a waiting transfer is parked, so sleeping
+    // allocates nothing. A transfer executed asynchronously never sleeps.
+    // Instead, the rest of its execution is submitted to the executor when
+    // it is woken up:
+    private final Executor executor;
+    private final AtomicInteger wakeUps = new AtomicInteger();
+    private Thread sleepingThread;
+    private Runnable continuation;
+    private CompletableFuture<Void> completion;
+
+    // Times used by metrics, 0 if the transfer is not timed:
+    private long startTime;
+    private long phaseStartTime;
+    // Position of the transfer among waiting transfers, see PrioritizedTransfer:
+    private long virtualDeadline;
+    // Sequence number of the record of the transfer in the journal:
+    private long journalSequence;
+    // How far the transfer has got through the limits of its devices
+    // before its current operation, see StorageSystemInstance.passThrottles():
+    private int throttleStage;
+
     private WrappedTransfer transferToWakeUp;
+    // Transfer taken from a queue by the handover of this one's source place,
+    // whose admission is completed before it is woken up:
+    private WrappedTransfer admittedTransfer;
+    // Set if the place on the source device has already been given away:
+    private boolean sourceHandedOver;
+    // Set if the transfer takes a place that is released by another transfer:
+    private boolean waitingForPredecessor;
+    // Set if the transfer has closed a cycle, whose other transfers are
+    // woken up once the mutexes are released:
+    private boolean closingCycle;
+    // Set before the transfer is woken up by a predecessor that has been
+    // aborted, and so has not released the place:
+    private boolean predecessorAborted;
+    // Links of the queue the transfer is currently in, and its level in
+    // the queue of waiting transfers, see WaitingTransferQueue:
+    private WrappedTransferQueue queue;
+    private int queueLevel;
+    private WrappedTransfer previous;
+    private WrappedTransfer next;
 
-    public WrappedTransfer(ComponentTransfer transfer) {
+    // Devices are null if the transfer has no source or destination.
+    // Transfers without an executor are executed by the calling thread.
+    public WrappedTransfer(
+            ComponentTransfer transfer,
+            DeviceState source,
+            DeviceState destination,
+            Executor executor) {
         this.transfer = transfer;
+        this.source = source;
+        this.destination = destination;
+        this.executor = executor;
     }
 
-    // ----------------- Getters & setters -----------------
-
-    public Semaphore getSemaphore() {
-        return semaphore;
+    // Makes a finished transfer executed by the calling thread ready for the
+    // next one, as if it has just been created. Nobody refers to a transfer
+    // once it has been performed or withdrawn, and all its wake-ups have
+    // been consumed by then.
+    public void reuse(ComponentTransfer transfer, DeviceState source, DeviceState destination) {
+        this.transfer = transfer;
+        this.source = source;
+        this.destination = destination;
+        startTime = 0;
+        phaseStartTime = 0;
+        virtualDeadline = 0;
+        journalSequence = 0;
+        throttleStage = 0;
+        transferToWakeUp = null;
+        admittedTransfer = null;
+        sourceHandedOver = false;
+        waitingForPredecessor = false;
+        closingCycle = false;
+        predecessorAborted = false;
+        queue = null;
+        queueLevel = 0;
+        previous = null;
+        next = null;
     }
 
+    // ----------------- Getters & setters -----------------
+
     public ComponentTransfer getTransfer() {
         return transfer;
     }
 
+    public DeviceState getSource() {
+        return source;
+    }
+
+    public DeviceState getDestination() {
+        return destination;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    public void setCompletion(CompletableFuture<Void> completion) {
+        this.completion = completion;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public long getPhaseStartTime() {
+        return phaseStartTime;
+    }
+
+    public void setPhaseStartTime(long phaseStartTime) {
+        this.phaseStartTime = phaseStartTime;
+    }
+
+    public long getVirtualDeadline() {
+        return virtualDeadline;
+    }
+
+    public void setVirtualDeadline(long virtualDeadline) {
+        this.virtualDeadline = virtualDeadline;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
+    public int getThrottleStage() {
+        return throttleStage;
+    }
+
+    public void setThrottleStage(int throttleStage) {
+        this.throttleStage = throttleStage;
+    }
+
     public WrappedTransfer getTransferToWakeUp() {
         return transferToWakeUp;
     }
@@ -35,17 +177,166 @@ public class WrappedTransfer {
         this.transferToWakeUp = other;
     }
 
-    // ---------------- Semaphore operations ----------------
+    public WrappedTransfer getAdmittedTransfer() {
+        return admittedTransfer;
+    }
+
+    // Returns the admitted transfer, if there is one, and clears it.
+    public WrappedTransfer takeAdmittedTransfer() {
+        WrappedTransfer admitted = admittedTransfer;
+        admittedTransfer = null;
+        return admitted;
+    }
 
+    public void setAdmittedTransfer(WrappedTransfer admittedTransfer) {
+        this.admittedTransfer = admittedTransfer;
+    }
+
+    public boolean isSourceHandedOver() {
+        return sourceHandedOver;
+    }
+
+    public void setSourceHandedOver(boolean sourceHandedOver) {
+        this.sourceHandedOver = sourceHandedOver;
+    }
+
+    public boolean isWaitingForPredecessor() {
+        return waitingForPredecessor;
+    }
+
+    public void setWaitingForPredecessor(boolean waitingForPredecessor) {
+        this.waitingForPredecessor = waitingForPredecessor;
+    }
+
+    public boolean isClosingCycle() {
+        return closingCycle;
+    }
+
+    public void setClosingCycle(boolean closingCycle) {
+        this.closingCycle = closingCycle;
+    }
+
+    public boolean isPredecessorAborted() {
+        return predecessorAborted;
+    }
+
+    public void setPredecessorAborted(boolean predecessorAborted) {
+        this.predecessorAborted = predecessorAborted;
+    }
+
+    public WrappedTransferQueue getQueue() {
+        return queue;
+    }
+
+    public void setQueue(WrappedTransferQueue queue) {
+        this.queue = queue;
+    }
+
+    public int getQueueLevel() {
+        return queueLevel;
+    }
+
+    public void setQueueLevel(int queueLevel) {
+        this.queueLevel = queueLevel;
+    }
+
+    public WrappedTransfer getPrevious() {
+        return previous;
+    }
+
+    public void setPrevious(WrappedTransfer previous) {
+        this.previous = previous;
+    }
+
+    public WrappedTransfer getNext() {
+        return next;
+    }
+
+    public void setNext(WrappedTransfer next) {
+        this.next = next;
+    }
+
+    // ---------------- Sleeping and waking up ----------------
+
+    // The interruption status of the thread is preserved.
     public void goToSleep() {
-        try {
-            semaphore.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("panic: unexpected thread interruption");
+        if (spin()) {
+            return;
+        }
+        sleepingThread = Thread.currentThread();
+        if (wakeUps.getAndDecrement() > 0) {
+            return;
+        }
+        boolean interrupted = false;
+        while (wakeUps.get() < 0) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns false if the thread has been interrupted before it was woken up,
+    // or, if the sleep is timed, the deadline (in System.nanoTime()) has passed.
+    // The interruption status of the thread is preserved, so the caller can
+    // tell which one it was.
+    public boolean goToSleepInterruptibly(boolean timed, long deadline) {
+        if (spin()) {
+            return true;
+        }
+        sleepingThread = Thread.currentThread();
+        if (wakeUps.getAndDecrement() > 0) {
+            return true;
+        }
+        while (wakeUps.get() < 0) {
+            if (Thread.currentThread().isInterrupted() || (timed && deadline - System.nanoTime() <= 0)) {
+                // Unless woken up at the same time:
+                if (wakeUps.compareAndSet(-1, 0)) {
+                    return false;
+                }
+            } else if (timed) {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return true;
+    }
+
+    // Asynchronous counterpart of goToSleep(). Returns true if the transfer has
+    // already been woken up and can go on; otherwise the continuation is
+    // submitted to the executor when the transfer is woken up.
+    public boolean goToSleep(Runnable continuation) {
+        this.continuation = continuation;
+        return wakeUps.getAndDecrement() > 0;
+    }
+
+    // The continuation of a transfer executed asynchronously may be run by
+    // the calling thread, if the executor does so, so no mutex can be held.
+    public void wakeUp() {
+        if (wakeUps.getAndIncrement() < 0) {
+            if (executor == null) {
+                LockSupport.unpark(sleepingThread);
+            } else {
+                executor.execute(continuation);
+            }
         }
     }
 
     public void wakeTheOtherUp() {
-        transferToWakeUp.getSemaphore().release();
+        transferToWakeUp.wakeUp();
+    }
+
+    // Returns true if the transfer has been woken up while spinning.
+    private boolean spin() {
+        for (int i = 0; i < SPINS; i++) {
+            int pending = wakeUps.get();
+            if (pending > 0 && wakeUps.compareAndSet(pending, pending - 1)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        return false;
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+// FIFO queue of transfers linked through the transfers themselves, so adding,
+// polling and removing a transfer from the middle of the queue take O(1) time
+// and allocate nothing. A transfer can be in at most one queue at a time.
+public class WrappedTransferQueue {
+    private WrappedTransfer first;
+    private WrappedTransfer last;
+    // Can be read without holding the mutex guarding the queue:
+    private volatile int size;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public WrappedTransfer peek() {
+        return first;
+    }
+
+    public boolean contains(WrappedTransfer wrappedTransfer) {
+        return wrappedTransfer.getQueue() == this;
+    }
+
+    public void add(WrappedTransfer wrappedTransfer) {
+        wrappedTransfer.setQueue(this);
+        wrappedTransfer.setPrevious(last);
+        wrappedTransfer.setNext(null);
+        if (last == null) {
+            first = wrappedTransfer;
+        } else {
+            last.setNext(wrappedTransfer);
+        }
+        last = wrappedTransfer;
+        size++;
+    }
+
+    public WrappedTransfer poll() {
+        WrappedTransfer result = first;
+        if (result != null) {
+            remove(result);
+        }
+        return result;
+    }
+
+    public boolean remove(WrappedTransfer wrappedTransfer) {
+        if (!contains(wrappedTransfer)) {
+            return false;
+        }
+        WrappedTransfer previous = wrappedTransfer.getPrevious();
+        WrappedTransfer next = wrappedTransfer.getNext();
+        if (previous == null) {
+            first = next;
+        } else {
+            previous.setNext(next);
+        }
+        if (next == null) {
+            last = previous;
+        } else {
+            next.setPrevious(previous);
+        }
+        wrappedTransfer.setQueue(null);
+        wrappedTransfer.setPrevious(null);
+        wrappedTransfer.setNext(null);
+        size--;
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Continuations of asynchronous transfers are run by the executor of the
+// system, which may run them in the calling thread. They are never submitted
+// while a mutex is held, so an executor that runs them at once does not make
+// a transfer wait for a mutex held by its own thread.
+// There is no test framework, so the test is run with java as a program.
+public class DirectExecutorTest {
+    private static final DeviceId A = new DeviceId(1);
+    private static final DeviceId B = new DeviceId(2);
+    private static final DeviceId C = new DeviceId(3);
+    private static final ComponentId FIRST = new ComponentId(1);
+    private static final ComponentId SECOND = new ComponentId(2);
+    private static final ComponentId THIRD = new ComponentId(3);
+
+    private static final Executor DIRECT = Runnable::run;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        runWithin("swap", DirectExecutorTest::swap);
+        runWithin("rotation", DirectExecutorTest::rotation);
+        runWithin("successor", DirectExecutorTest::successor);
+        System.out.println("DirectExecutorTest passed");
+    }
+
+    // ----------------------------- Scenarios -----------------------------
+
+    // The second transfer closes a cycle with the first one, which is waiting.
+    private static void swap() {
+        StorageSystemInstance system = newSystem(Map.of(FIRST, A, SECOND, B));
+        CompletableFuture<Void> first = system.executeAsync(new Transfer(FIRST, A, B));
+        check(!first.isDone(), "first transfer has not waited");
+        CompletableFuture<Void> second = system.executeAsync(new Transfer(SECOND, B, A));
+        check(first.isDone() && second.isDone(), "transfers of the cycle not executed");
+        first.join();
+        second.join();
+        check(B.equals(system.locate(FIRST)) && A.equals(system.locate(SECOND)), "components not swapped");
+    }
+
+    // A batch closes a cycle of waiting transfers while all devices of the
+    // batch are locked.
+    private static void rotation() {
+        StorageSystemInstance system = newSystem(Map.of(FIRST, A, SECOND, B, THIRD, C));
+        CompletableFuture<Void> first = system.executeAsync(new Transfer(FIRST, A, B));
+        CompletableFuture<Void> second = system.executeAsync(new Transfer(SECOND, B, C));
+        check(!first.isDone() && !second.isDone(), "transfers have not waited");
+        List<TransferException> results = system.executeAll(Arrays.asList(new Transfer(THIRD, C, A)));
+        check(results.equals(Arrays.asList((TransferException) null)), "batch failed: " + results);
+        check(first.isDone() && second.isDone(), "transfers of the cycle not executed");
+        check(B.equals(system.locate(FIRST)) && C.equals(system.locate(SECOND))
+                && A.equals(system.locate(THIRD)), "components not rotated");
+    }
+
+    // The second transfer takes the place released by the first one on A,
+    // and once it is completed, its component is moved away from A again,
+    // which needs the mutex of A.
+    private static void successor() {
+        StorageSystemInstance system = newSystem(Map.of(FIRST, A, SECOND, B));
+        CompletableFuture<Void> back = new CompletableFuture<>();
+        CompletableFuture<Void> second = system.executeAsync(new Transfer(SECOND, B, A));
+        second.thenRun(() -> system.executeAsync(new Transfer(SECOND, A, B)).thenRun(() -> back.complete(null)));
+        check(!second.isDone(), "second transfer has not waited");
+        CompletableFuture<Void> first = system.executeAsync(new Transfer(FIRST, A, C));
+        check(first.isDone() && back.isDone(), "transfers not executed");
+        first.join();
+        check(C.equals(system.locate(FIRST)) && B.equals(system.locate(SECOND)), "components not moved");
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    // A, B and C have a single slot each.
+    private static StorageSystemInstance newSystem(Map<ComponentId, DeviceId> placement) {
+        return (StorageSystemInstance) StorageSystemFactory.newSystem(
+                Map.of(A, 1, B, 1, C, 1), placement, DIRECT);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Everything is run by the thread of the scenario, so a scenario that
+    // hangs is detected by the main thread.
+    private static void runWithin(String name, Runnable scenario) throws InterruptedException {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(() -> {
+            try {
+                scenario.run();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(TIMEOUT_MILLIS);
+        if (thread.isAlive()) {
+            throw new AssertionError(name + " has hung");
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(name + " has failed", failure[0]);
+        }
+    }
+
+    private static class Transfer implements ComponentTransfer {
+        private final ComponentId componentId;
+        private final DeviceId source;
+        private final DeviceId destination;
+
+        Transfer(ComponentId componentId, DeviceId source, DeviceId destination) {
+            this.componentId = componentId;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
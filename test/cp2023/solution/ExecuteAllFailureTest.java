@@ -0,0 +1,110 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentDoesNotExist;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferFailed;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A transfer of a batch whose prepare() or perform() throws is reported in
+// the results of executeAll(), which still returns, and the other transfers
+// of the batch are executed.
+// There is no test framework, so the test is run with java as a program.
+public class ExecuteAllFailureTest {
+    private static final DeviceId A = new DeviceId(1);
+    private static final DeviceId B = new DeviceId(2);
+    private static final ComponentId FIRST = new ComponentId(1);
+    private static final ComponentId SECOND = new ComponentId(2);
+    private static final ComponentId THIRD = new ComponentId(3);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            StorageSystemInstance system = (StorageSystemInstance) StorageSystemFactory.newSystem(
+                    Map.of(A, 3, B, 3), Map.of(FIRST, A, SECOND, A, THIRD, A), executor);
+            IllegalStateException failure = new IllegalStateException("boom");
+            List<TransferException> results = system.executeAll(Arrays.asList(
+                    new Transfer(FIRST, A, B, failure, null),
+                    new Transfer(SECOND, A, B, null, null),
+                    new Transfer(THIRD, B, A, null, null),
+                    new Transfer(THIRD, A, B, null, failure)));
+
+            check(results.size() == 4, "results missing: " + results);
+            check(results.get(0) instanceof TransferFailed && results.get(0).getCause() == failure
+                    && FIRST.equals(((TransferFailed) results.get(0)).getComponentId()),
+                    "failure of prepare() not reported: " + results.get(0));
+            check(results.get(1) == null, "valid transfer failed: " + results.get(1));
+            check(results.get(2) instanceof ComponentDoesNotExist, "invalid transfer not rejected: " + results.get(2));
+            check(results.get(3) instanceof TransferFailed && results.get(3).getCause() == failure,
+                    "failure of perform() not reported: " + results.get(3));
+            check(B.equals(system.locate(SECOND)), "valid transfer not executed");
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("ExecuteAllFailureTest passed");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Throws the given exceptions from prepare() or perform(), unless they are null.
+    private static class Transfer implements ComponentTransfer {
+        private final ComponentId componentId;
+        private final DeviceId source;
+        private final DeviceId destination;
+        private final RuntimeException prepareFailure;
+        private final RuntimeException performFailure;
+
+        Transfer(ComponentId componentId, DeviceId source, DeviceId destination,
+                RuntimeException prepareFailure, RuntimeException performFailure) {
+            this.componentId = componentId;
+            this.source = source;
+            this.destination = destination;
+            this.prepareFailure = prepareFailure;
+            this.performFailure = performFailure;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+            if (prepareFailure != null) {
+                throw prepareFailure;
+            }
+        }
+
+        @Override
+        public void perform() {
+            if (performFailure != null) {
+                throw performFailure;
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Author: Tomasz Zając (tz448580@students.mimuw.edu.pl)
+ */
+
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Transfers whose records cannot be made durable are aborted: they are not
+// prepared, their components stay where they were, the places they have
+// taken are given back, and transfers waiting for them are not left parked.
+// The journal is written through a channel that fails on demand.
+// There is no test framework, so the test is run with java as a program.
+public class TransferJournalFailureTest {
+    private static final DeviceId A = new DeviceId(1);
+    private static final DeviceId B = new DeviceId(2);
+    private static final DeviceId C = new DeviceId(3);
+    private static final ComponentId FIRST = new ComponentId(1);
+    private static final ComponentId SECOND = new ComponentId(2);
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        singleTransfer();
+        waitingTransfer(false);
+        waitingTransfer(true);
+        cycle();
+        System.out.println("TransferJournalFailureTest passed");
+    }
+
+    // ----------------------------- Scenarios -----------------------------
+
+    private static void singleTransfer() throws Exception {
+        try (Fixture fixture = new Fixture()) {
+            fixture.channel.failing = true;
+            Transfer transfer = new Transfer(FIRST, A, C);
+            expectJournalFailure(() -> fixture.system.execute(transfer));
+            check(!transfer.prepared, "aborted transfer has been prepared");
+            fixture.checkUnchanged();
+
+            // The component is not left claimed:
+            Transfer retry = new Transfer(FIRST, A, C);
+            expectJournalFailure(() -> fixture.system.execute(retry));
+            fixture.checkUnchanged();
+
+            // What has been written of the aborted records is cut off:
+            check(Files.size(fixture.journalPath) == 0, "records of aborted transfers left in the journal");
+            fixture.channel.failing = false;
+            TransferJournal reopened = TransferJournal.open(fixture.journalPath,
+                    PlacementSnapshot.read(fixture.snapshotPath));
+            check(reopened.getUnfinishedTransfers().isEmpty(), "aborted transfers replayed");
+            reopened.close();
+        }
+    }
+
+    // The second transfer is admitted by the first one, which hands over its
+    // place on A, so it is aborted because the first one has been.
+    private static void waitingTransfer(boolean async) throws Exception {
+        try (Fixture fixture = new Fixture()) {
+            fixture.channel.failing = true;
+            Transfer first = new Transfer(FIRST, A, C);
+            Transfer second = new Transfer(SECOND, B, A);
+            CompletableFuture<Void> waiting = async
+                    ? fixture.system.executeAsync(second)
+                    : fixture.inThread(() -> fixture.system.execute(second));
+            // A is full, so the second transfer waits until the first one is admitted:
+            fixture.awaitQueued(1);
+            check(!waiting.isDone(), "second transfer has not waited");
+
+            if (async) {
+                expectJournalFailure(fixture.system.executeAsync(first));
+            } else {
+                expectJournalFailure(() -> fixture.system.execute(first));
+            }
+            expectJournalFailure(waiting);
+            check(!first.prepared && !second.prepared, "aborted transfer has been prepared");
+            fixture.checkUnchanged();
+        }
+    }
+
+    private static void cycle() throws Exception {
+        try (Fixture fixture = new Fixture()) {
+            fixture.channel.failing = true;
+            Transfer first = new Transfer(FIRST, A, B);
+            Transfer second = new Transfer(SECOND, B, A);
+            CompletableFuture<Void> waiting = fixture.inThread(() -> fixture.system.execute(first));
+            fixture.awaitQueued(1);
+            check(!waiting.isDone(), "first transfer has not waited");
+
+            expectJournalFailure(() -> fixture.system.execute(second));
+            expectJournalFailure(waiting);
+            check(!first.prepared && !second.prepared, "aborted transfer has been prepared");
+            fixture.checkUnchanged();
+        }
+    }
+
+    // ----------------------------- Private methods -----------------------------
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void expectJournalFailure(Action action) throws Exception {
+        try {
+            action.run();
+        } catch (UncheckedIOException e) {
+            return;
+        }
+        throw new AssertionError("transfer has not failed");
+    }
+
+    private static void expectJournalFailure(CompletableFuture<Void> completion) throws Exception {
+        try {
+            completion.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            check(e.getCause() instanceof UncheckedIOException, "unexpected failure " + e.getCause());
+            return;
+        } catch (TimeoutException e) {
+            throw new AssertionError("transfer has been left waiting");
+        }
+        throw new AssertionError("transfer has not failed");
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    // A, B and C have a single slot each; the first component is on A and
+    // the second one on B.
+    private static class Fixture implements AutoCloseable {
+        private final Path directory = Files.createTempDirectory("journal-failure");
+        private final Path snapshotPath = directory.resolve("snapshot");
+        private final Path journalPath = directory.resolve("journal");
+        private final ExecutorService executor = Executors.newFixedThreadPool(2);
+        private FailingChannel channel;
+        private final StorageSystemInstance system;
+
+        Fixture() throws IOException {
+            StorageSystem initial = StorageSystemFactory.newSystem(
+                    Map.of(A, 1, B, 1, C, 1), Map.of(FIRST, A, SECOND, B));
+            ((StorageSystemInstance) initial).writeSnapshot(snapshotPath);
+            PlacementSnapshot placement = PlacementSnapshot.read(snapshotPath);
+            TransferJournal journal = TransferJournal.open(journalPath, placement, path -> {
+                channel = new FailingChannel(FileChannel.open(path,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+                return channel;
+            });
+            system = new StorageSystemInstance(
+                    placement.getDeviceIds(),
+                    placement.getDeviceTotalSlots(),
+                    placement.getDeviceFreeSlots(),
+                    placement.getDeviceIndices(),
+                    placement.getComponentPlacement(),
+                    executor,
+                    journal,
+                    null);
+        }
+
+        CompletableFuture<Void> inThread(Action action) {
+            CompletableFuture<Void> completion = new CompletableFuture<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    action.run();
+                    completion.complete(null);
+                } catch (Throwable e) {
+                    completion.completeExceptionally(e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return completion;
+        }
+
+        // Waits until the given number of transfers have been queued. A transfer
+        // is queued while the devices are locked, so one executed afterwards
+        // finds it waiting.
+        void awaitQueued(long queued) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+            while (system.getMetrics().getQueued() < queued) {
+                check(System.nanoTime() - deadline < 0, "transfer has not been queued");
+                Thread.yield();
+            }
+        }
+
+        void checkUnchanged() {
+            check(A.equals(system.locate(FIRST)) && B.equals(system.locate(SECOND)),
+                    "component of an aborted transfer has moved");
+            check(system.freeSlots(A) == 0 && system.freeSlots(B) == 0 && system.freeSlots(C) == 1,
+                    "places of aborted transfers not given back");
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdown();
+            try {
+                check(executor.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "executor has hung");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError("interrupted while waiting for the executor", e);
+            } finally {
+                channel.failing = false;
+                system.getJournal().close();
+                Files.deleteIfExists(journalPath);
+                Files.deleteIfExists(snapshotPath);
+                Files.delete(directory);
+            }
+        }
+    }
+
+    private static class Transfer implements ComponentTransfer {
+        private final ComponentId componentId;
+        private final DeviceId source;
+        private final DeviceId destination;
+        private volatile boolean prepared;
+
+        Transfer(ComponentId componentId, DeviceId source, DeviceId destination) {
+            this.componentId = componentId;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+            prepared = true;
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    // Records are written, but they cannot be forced while the channel is
+    // failing, as if the device has failed before they were stored.
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private volatile boolean failing;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failing) {
+                throw new IOException("Injected failure");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}